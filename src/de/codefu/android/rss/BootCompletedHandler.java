@@ -22,7 +22,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
-import de.codefu.android.rss.db.ItemProvider;
+import de.codefu.android.rss.updateservice.PayloadSpool;
 import de.codefu.android.rss.updateservice.ServiceComm;
 
 
@@ -70,13 +70,14 @@ public class BootCompletedHandler extends BroadcastReceiver {
 
 
     /**
-     * Delete orphaned records in auxiliary table.
+     * Delete orphaned feed data in the spool. Nothing can be waiting for it
+     * right after booting.
      * 
      * @param context
      *            the context
      */
     private void deleteOrphanAuxRecords(Context context) {
-        context.getContentResolver().delete(ItemProvider.CONTENT_URI_AUX, null, null);
-        Log.i(TAG, "Cleaned aux table after boot");
+        final int count = new PayloadSpool(context).clear();
+        Log.i(TAG, "Cleaned spool after boot, " + count + " files deleted");
     }
 }
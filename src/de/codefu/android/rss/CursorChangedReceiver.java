@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.widget.CursorAdapter;
+import de.codefu.android.rss.db.FeedProvider;
 
 
 
@@ -30,7 +31,9 @@ import android.widget.CursorAdapter;
  * Handler for the {@link DB#DATA_CHANGED} intent.
  * <p>
  * The intent signals that the database content has changed so cursors used in
- * {@link CursorAdapter} objects can be refreshed.
+ * {@link CursorAdapter} objects can be refreshed. If the intent has the
+ * {@link #FEED_IDS} extra, only the items of these feeds changed and a cursor
+ * over the items of another feed is left alone.
  * 
  * @author mj
  */
@@ -40,29 +43,76 @@ public class CursorChangedReceiver extends BroadcastReceiver {
 
     public static final String DATA_CHANGED = PACKAGE_NAME + ".action.datachanged";
 
+    /**
+     * The key for the extra of the {@link #DATA_CHANGED} intent that has the
+     * IDs of the feeds whose items changed. Without it anything may have
+     * changed.
+     */
+    public static final String FEED_IDS = "feedids";
+
     /**
      * Reference to the cursor that should be refreshed when the intent is
      * received.
      */
     private Cursor cursor;
+    /**
+     * The ID of the feed whose items the cursor has or
+     * {@link FeedProvider#ALL_FEEDS}.
+     */
+    private final long feedId;
 
 
     /**
-     * Creates a new instance.
+     * Creates a new instance for a cursor that depends on all feeds.
      * 
      * @param cursor
      *            the cursor that should be refreshed when the intent is
      *            received
      */
     public CursorChangedReceiver(Cursor cursor) {
+        this(cursor, FeedProvider.ALL_FEEDS);
+    }
+
+
+    /**
+     * Creates a new instance for a cursor that only depends on the items of
+     * one feed.
+     * 
+     * @param cursor
+     *            the cursor that should be refreshed when the intent is
+     *            received
+     * @param feedId
+     *            the ID of the feed or {@link FeedProvider#ALL_FEEDS}
+     */
+    public CursorChangedReceiver(Cursor cursor, long feedId) {
         this.cursor = cursor;
+        this.feedId = feedId;
     }
 
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (DATA_CHANGED.equals(intent.getAction())) {
+        if (DATA_CHANGED.equals(intent.getAction()) && isAffected(intent.getLongArrayExtra(FEED_IDS))) {
             cursor.requery();
         }
     }
+
+
+    /**
+     * @param feedIds
+     *            the IDs of the feeds that changed or null if anything may
+     *            have changed
+     * @return true, if the cursor has to be refreshed
+     */
+    private boolean isAffected(long[] feedIds) {
+        if ((feedIds == null) || (feedId == FeedProvider.ALL_FEEDS)) {
+            return true;
+        }
+        for (long id : feedIds) {
+            if (id == feedId) {
+                return true;
+            }
+        }
+        return false;
+    }
 };
@@ -23,6 +23,7 @@ import android.os.Bundle;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import de.codefu.android.rss.db.FeedProvider;
 import de.codefu.android.rss.updateservice.ServiceComm;
 
 
@@ -34,6 +35,32 @@ import de.codefu.android.rss.updateservice.ServiceComm;
  */
 public class MainPreferences extends PreferenceActivity {
 
+    /**
+     * Feeds are parsed and stored while they are downloaded.
+     */
+    public static final String INGEST_STREAMING = "streaming";
+    /**
+     * Feeds are downloaded completely and handed to the insert service.
+     */
+    public static final String INGEST_BUFFERED = "buffered";
+    /**
+     * Feeds are downloaded completely and handed to a pipeline that parses
+     * and stores several feeds at the same time.
+     */
+    public static final String INGEST_PIPELINE = "pipeline";
+    /**
+     * Feeds are downloaded from their servers.
+     */
+    public static final String BACKEND_HTTP = "http";
+    /**
+     * Feeds are replayed from recorded responses instead of being downloaded.
+     */
+    public static final String BACKEND_REPLAY = "replay";
+    /**
+     * Feeds are downloaded and the responses are recorded for replaying.
+     */
+    public static final String BACKEND_RECORD = "record";
+
     private boolean autoPoll;
     private String TAG = "MainPreferences";
 
@@ -51,6 +78,123 @@ public class MainPreferences extends PreferenceActivity {
     }
 
 
+    /**
+     * @param context
+     *            the context
+     * @return the maximum number of feeds that are downloaded at the same time
+     *         during a refresh
+     */
+    public static int getMaxParallelFetches(Context context) {
+        return getIntPref(context, "mainprefs_fetch_parallel", 4);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return the maximum number of feeds from the same host that are
+     *         downloaded at the same time during a refresh
+     */
+    public static int getMaxParallelFetchesPerHost(Context context) {
+        return getIntPref(context, "mainprefs_fetch_parallel_per_host", 2);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return the maximum number of bytes of a feed that are processed if the
+     *         feed has no limit of its own
+     */
+    public static long getMaxFeedBytes(Context context) {
+        return getIntPref(context, "mainprefs_fetch_maxkb", 2048) * 1024L;
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return true, if connections should be kept open and reused for
+     *         further feeds from the same server
+     */
+    public static boolean getKeepAlive(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("mainprefs_fetch_keepalive", true);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return how downloaded feeds are processed, one of
+     *         {@link #INGEST_STREAMING}, {@link #INGEST_BUFFERED} and
+     *         {@link #INGEST_PIPELINE}
+     */
+    public static String getIngestMode(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("mainprefs_ingest_mode",
+                        INGEST_STREAMING);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return where feeds are taken from, one of {@link #BACKEND_HTTP},
+     *         {@link #BACKEND_REPLAY} and {@link #BACKEND_RECORD}
+     */
+    public static String getFetchBackend(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("mainprefs_fetch_backend",
+                        BACKEND_HTTP);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return the engine that parses feeds that have no engine of their own,
+     *         {@link FeedProvider#PARSER_SAX} or {@link FeedProvider#PARSER_PULL}
+     */
+    public static int getParser(Context context) {
+        return getIntPref(context, "mainprefs_parser", FeedProvider.PARSER_SAX);
+    }
+
+
+    /**
+     * @param context
+     *            the context
+     * @return the number of already stored items in a row after which
+     *         parsing a feed stops; 0 if feeds are always read completely
+     */
+    public static int getEarlyStopRun(Context context) {
+        return getIntPref(context, "mainprefs_early_stop", 0);
+    }
+
+
+    /**
+     * Reads a preference that is stored as a string (like the ones written by
+     * a ListPreference) and converts it to an int.
+     * 
+     * @param context
+     *            the context
+     * @param key
+     *            the key of the preference
+     * @param defaultValue
+     *            the value to return if the preference is not set or invalid
+     * @return the value of the preference
+     */
+    private static int getIntPref(Context context, String key, int defaultValue) {
+        final String value = PreferenceManager.getDefaultSharedPreferences(context).getString(key, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.w("MainPreferences", "Invalid value for " + key + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+
     @Override
     protected void onDestroy() {
         boolean newAutoPoll = getAutoPoll(this);
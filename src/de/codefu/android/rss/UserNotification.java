@@ -60,9 +60,22 @@ public class UserNotification {
             @Override
             public void onReceive(Context context, Intent intent) {
                 Log.i("UserNotification", "Handling POLLING_PROBLEM");
-                final String title = context.getString(R.string.usernot_title);
-                final String text = context.getString(R.string.usernot_text);
-                notifyUser(context, title, text);
+                final int problem = intent.getIntExtra(ServiceComm.PROBLEM, ServiceComm.PROBLEM_DOWNLOAD);
+                if (problem == ServiceComm.PROBLEM_TOO_LARGE) {
+                    final String title = context.getString(R.string.usernot_title_too_large);
+                    final String text = context.getString(R.string.usernot_text_too_large);
+                    notifyUser(context, title, text);
+                }
+                else if (problem == ServiceComm.PROBLEM_MALFORMED) {
+                    final String title = context.getString(R.string.usernot_title_malformed);
+                    final String text = context.getString(R.string.usernot_text_malformed);
+                    notifyUser(context, title, text);
+                }
+                else {
+                    final String title = context.getString(R.string.usernot_title);
+                    final String text = context.getString(R.string.usernot_text);
+                    notifyUser(context, title, text);
+                }
             }
         };
         context.registerReceiver(br, new IntentFilter(ServiceComm.POLLING_PROBLEM));
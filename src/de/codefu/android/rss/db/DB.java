@@ -47,7 +47,7 @@ class DB extends SQLiteOpenHelper {
      * The version of the database schema. Increase if the schema has changed
      * and an upgrade step has to be triggered.
      */
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 14;
     /**
      * Reference to the context.
      */
@@ -84,17 +84,65 @@ class DB extends SQLiteOpenHelper {
         db.execSQL(FeedProvider.getCreateTable());
         db.execSQL(ItemProvider.getCreateTable());
         db.execSQL(ItemProvider.getCreateTmpTable());
-        db.execSQL(ItemProvider.getCreateAuxTable());
+        db.execSQL(FeedProvider.getCreateStatsTable());
         FeedProvider.addDefaultFeed(context, db);
     }
 
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if ((oldVersion == 2) && (newVersion == 3)) {
+        if (oldVersion < 3) {
             db.execSQL("alter table " + ItemProvider.ITEMS_NAME + " add column " + ItemProvider.ITEMS_COL_KEEPER
                             + " INTEGER");
         }
+        if (oldVersion < 4) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_ETAG, "TEXT");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_LASTMODIFIED, "TEXT");
+        }
+        if (oldVersion < 5) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_BYTESRECEIVED, "INTEGER");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_BYTESDECODED, "INTEGER");
+        }
+        if (oldVersion < 6) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_MAXBYTES, "INTEGER");
+        }
+        if (oldVersion < 7) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_BODYHASH, "TEXT");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_UNCHANGEDSKIPS, "INTEGER");
+        }
+        if (oldVersion < 8) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_FAILURES, "INTEGER");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_NEXTRETRY, "INTEGER");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_BREAKER, "INTEGER");
+        }
+        if (oldVersion < 9) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_REDIRECTS, "INTEGER");
+        }
+        if (oldVersion < 10) {
+            // Creates the table with all of its current columns.
+            db.execSQL(FeedProvider.getCreateStatsTable());
+        }
+        if (oldVersion < 11) {
+            // Large feed data is kept in the PayloadSpool now.
+            db.execSQL("drop table if exists tmp");
+        }
+        if (oldVersion < 12) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_PARSER, "INTEGER");
+        }
+        if ((oldVersion >= 10) && (oldVersion < 13)) {
+            // Only a stats table created before version 13 lacks the column.
+            addColumn(db, FeedProvider.STATS_NAME, FeedProvider.STATS_COL_ITEMSSKIPPED, "INTEGER");
+        }
+        if (oldVersion < 14) {
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_HINTMIN, "INTEGER");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_SKIPHOURS, "INTEGER");
+            addColumn(db, FeedProvider.FEEDS_NAME, FeedProvider.FEEDS_COL_SKIPDAYS, "INTEGER");
+        }
+    }
+
+
+    private void addColumn(SQLiteDatabase db, String table, String column, String type) {
+        db.execSQL("alter table " + table + " add column " + column + " " + type);
     }
 
 }
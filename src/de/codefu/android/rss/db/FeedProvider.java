@@ -18,6 +18,9 @@
  */
 package de.codefu.android.rss.db;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -56,6 +59,32 @@ public class FeedProvider extends ContentProvider {
      * if the feed supplies some).
      */
     public static int CLEAN_FULL_HTML = 2;
+    /**
+     * Parser engine: the one chosen in the main preferences is used.
+     */
+    public static final int PARSER_DEFAULT = 0;
+    /**
+     * Parser engine: the feed is parsed with a SAX parser.
+     */
+    public static final int PARSER_SAX = 1;
+    /**
+     * Parser engine: the feed is parsed with an XmlPull parser.
+     */
+    public static final int PARSER_PULL = 2;
+    /**
+     * Circuit breaker state: the feed is polled normally.
+     */
+    public static final int BREAKER_CLOSED = 0;
+    /**
+     * Circuit breaker state: the feed failed too often and is not polled until
+     * its next retry time.
+     */
+    public static final int BREAKER_OPEN = 1;
+    /**
+     * Circuit breaker state: the feed is being polled once to find out whether
+     * it works again.
+     */
+    public static final int BREAKER_HALF_OPEN = 2;
     /**
      * The name of the table that keeps feed data.
      */
@@ -98,6 +127,130 @@ public class FeedProvider extends ContentProvider {
      * items' data. See {@link #CLEAN_RAW}, {@link #CLEAN_STRIP_HTML} etc.
      */
     public static final String FEEDS_COL_CLEANHTML = "cleanhtml";
+    /**
+     * Table column that has the ETag header the server sent with the last
+     * response that had data.
+     */
+    public static final String FEEDS_COL_ETAG = "etag";
+    /**
+     * Table column that has the Last-Modified header the server sent with the
+     * last response that had data. Stored verbatim so that it can be sent back
+     * without depending on the device's clock.
+     */
+    public static final String FEEDS_COL_LASTMODIFIED = "lastmodified";
+    /**
+     * Table column that has the number of bytes received during the last
+     * download, i.e. the possibly compressed size.
+     */
+    public static final String FEEDS_COL_BYTESRECEIVED = "bytesreceived";
+    /**
+     * Table column that has the number of bytes of the last download after
+     * decompression.
+     */
+    public static final String FEEDS_COL_BYTESDECODED = "bytesdecoded";
+    /**
+     * Table column that has the maximum number of bytes of the feed's data
+     * that are processed. 0 or null means the global default is used.
+     */
+    public static final String FEEDS_COL_MAXBYTES = "maxbytes";
+    /**
+     * Table column that has the fingerprint of the data that was processed the
+     * last time.
+     */
+    public static final String FEEDS_COL_BODYHASH = "bodyhash";
+    /**
+     * Table column that has the number of polls that were not processed
+     * because the data was the same as the last time.
+     */
+    public static final String FEEDS_COL_UNCHANGEDSKIPS = "unchangedskips";
+    /**
+     * Table column that has the number of polls in a row that failed.
+     */
+    public static final String FEEDS_COL_FAILURES = "failures";
+    /**
+     * Table column that has the time in milliseconds before which the feed is
+     * not polled because of earlier failures.
+     */
+    public static final String FEEDS_COL_NEXTRETRY = "nextretry";
+    /**
+     * Table column that has the state of the feed's circuit breaker. See
+     * {@link #BREAKER_CLOSED}, {@link #BREAKER_OPEN} etc.
+     */
+    public static final String FEEDS_COL_BREAKER = "breaker";
+    /**
+     * Table column that has the number of redirects that were followed during
+     * the last download.
+     */
+    public static final String FEEDS_COL_REDIRECTS = "redirects";
+    /**
+     * Table column that has the engine that parses the feed's data. See
+     * {@link #PARSER_DEFAULT}, {@link #PARSER_SAX} etc.
+     */
+    public static final String FEEDS_COL_PARSER = "parser";
+    /**
+     * Table column that has the minimum time in minutes between two polls the
+     * feed asks for with its ttl or syndication module elements, or 0.
+     */
+    public static final String FEEDS_COL_HINTMIN = "hintmin";
+    /**
+     * Table column that has the hours of the day (UTC) in which the feed asks
+     * not to be polled, one bit per hour.
+     */
+    public static final String FEEDS_COL_SKIPHOURS = "skiphours";
+    /**
+     * Table column that has the days of the week (UTC) on which the feed asks
+     * not to be polled, one bit per day starting with Sunday.
+     */
+    public static final String FEEDS_COL_SKIPDAYS = "skipdays";
+    /**
+     * The name of the table with the statistics of the last polls of each
+     * feed.
+     */
+    public static final String STATS_NAME = "fetchstats";
+    public static final String STATS_COL_FEEDID = "_feedid";
+    /**
+     * Stats column that has the time in milliseconds when the poll started.
+     */
+    public static final String STATS_COL_TIME = "time";
+    /**
+     * Stats column that has the HTTP status of the response or
+     * {@link #STATS_STATUS_FAILED}.
+     */
+    public static final String STATS_COL_STATUS = "status";
+    /**
+     * The status of a poll whose download failed.
+     */
+    public static final int STATS_STATUS_FAILED = 0;
+    public static final String STATS_COL_REDIRECTS = "redirects";
+    public static final String STATS_COL_CONNECTMS = "connectms";
+    public static final String STATS_COL_FIRSTBYTEMS = "firstbytems";
+    public static final String STATS_COL_TRANSFERMS = "transferms";
+    public static final String STATS_COL_BYTES = "bytes";
+    public static final String STATS_COL_PARSEMS = "parsems";
+    /**
+     * Stats column that has the number of items found in the feed data.
+     */
+    public static final String STATS_COL_ITEMSSEEN = "itemsseen";
+    /**
+     * Stats column that has the number of items that were new.
+     */
+    public static final String STATS_COL_ITEMSNEW = "itemsnew";
+    /**
+     * Stats column that has the number of already stored items that were
+     * skipped before parsing stopped early.
+     */
+    public static final String STATS_COL_ITEMSSKIPPED = "itemsskipped";
+    public static final String STATS_COL_INSERTMS = "insertms";
+    public static final String STATS_COL_MOVEMS = "movems";
+    /**
+     * Stats column that is 1 if the poll's items were stored and 0 if the
+     * data was not modified, unchanged or not processed.
+     */
+    public static final String STATS_COL_INGESTED = "ingested";
+    /**
+     * The number of polls per feed that are kept in the stats table.
+     */
+    public static final int MAX_STATS_PER_FEED = 50;
     /**
      * This feed id means "all feeds".
      */
@@ -110,6 +263,15 @@ public class FeedProvider extends ContentProvider {
      * The content URI used to query this provider.
      */
     public static final Uri CONTENT_URI = Uri.parse(URL_ROOT);
+    /**
+     * The path of the poll statistics. ".../stats" is used to insert them,
+     * ".../stats/22" to query the statistics of feed 22, newest first.
+     */
+    public static final String STATS = "stats";
+    /**
+     * The content URI of the poll statistics.
+     */
+    public static final Uri CONTENT_URI_STATS = Uri.parse(URL_ROOT + "/" + STATS);
     /**
      * The fragment used to designate that the big feeds table is requested that
      * includes number of items and number of items read.
@@ -119,6 +281,12 @@ public class FeedProvider extends ContentProvider {
      * The fragment used to designate that the name is to be overwritten.
      */
     public static final String FORCE_NAME_FRAGMENT = "force";
+    /**
+     * The fragment used to designate that a poll returned the same data as the
+     * last time, which increments the feed's {@link #FEEDS_COL_UNCHANGEDSKIPS}
+     * counter in addition to the update.
+     */
+    public static final String UNCHANGED_FRAGMENT = "unchanged";
     /**
      * Convenience constant for querying the fancy feed cursor.
      */
@@ -172,7 +340,12 @@ public class FeedProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         UriParts up = UriHelper.analyze(uri);
-        if (!up.hasPath() && !up.hasId()) {
+        if (up.hasPath(STATS) && !up.hasId()) {
+            addStats(new ContentValues[] {
+                values
+            });
+        }
+        else if (!up.hasPath() && !up.hasId()) {
             final String name = values.getAsString("name");
             final String url = values.getAsString("url");
             long id = addFeed(name, url);
@@ -184,6 +357,16 @@ public class FeedProvider extends ContentProvider {
     }
 
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        UriParts up = UriHelper.analyze(uri);
+        if (up.hasPath(STATS) && !up.hasId()) {
+            return addStats(values);
+        }
+        return super.bulkInsert(uri, values);
+    }
+
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         UriParts up = UriHelper.analyze(uri);
@@ -200,6 +383,9 @@ public class FeedProvider extends ContentProvider {
                 }
             }
         }
+        else if (up.hasPath(STATS) && up.hasId()) {
+            return getStatsCursor(up.id);
+        }
         return null;
     }
 
@@ -211,6 +397,10 @@ public class FeedProvider extends ContentProvider {
             if (up.hasFragment(FORCE_NAME_FRAGMENT)) {
                 updateFeed(up.id, true, values);
             }
+            else if (up.hasFragment(UNCHANGED_FRAGMENT)) {
+                countUnchanged(up.id);
+                updateFeed(up.id, false, values);
+            }
             else {
                 updateFeed(up.id, false, values);
             }
@@ -228,7 +418,44 @@ public class FeedProvider extends ContentProvider {
                         + FEEDS_COL_SITEURL + " TEXT, " //
                         + FEEDS_COL_AUTOPOLLMIN + " INTEGER, " //
                         + FEEDS_COL_LASTPOLLDATE + " INTEGER, " //
-                        + FEEDS_COL_CLEANHTML + " INTEGER" //
+                        + FEEDS_COL_CLEANHTML + " INTEGER, " //
+                        + FEEDS_COL_ETAG + " TEXT, " //
+                        + FEEDS_COL_LASTMODIFIED + " TEXT, " //
+                        + FEEDS_COL_BYTESRECEIVED + " INTEGER, " //
+                        + FEEDS_COL_BYTESDECODED + " INTEGER, " //
+                        + FEEDS_COL_MAXBYTES + " INTEGER, " //
+                        + FEEDS_COL_BODYHASH + " TEXT, " //
+                        + FEEDS_COL_UNCHANGEDSKIPS + " INTEGER, " //
+                        + FEEDS_COL_FAILURES + " INTEGER, " //
+                        + FEEDS_COL_NEXTRETRY + " INTEGER, " //
+                        + FEEDS_COL_BREAKER + " INTEGER, " //
+                        + FEEDS_COL_REDIRECTS + " INTEGER, " //
+                        + FEEDS_COL_PARSER + " INTEGER, " //
+                        + FEEDS_COL_HINTMIN + " INTEGER, " //
+                        + FEEDS_COL_SKIPHOURS + " INTEGER, " //
+                        + FEEDS_COL_SKIPDAYS + " INTEGER" //
+                        + ");";
+    }
+
+
+    public static String getCreateStatsTable() {
+        return "CREATE TABLE " + STATS_NAME + " (" //
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, " //
+                        + STATS_COL_FEEDID + " INTEGER REFERENCES " + FEEDS_NAME + ", " //
+                        + STATS_COL_TIME + " INTEGER, " //
+                        + STATS_COL_STATUS + " INTEGER, " //
+                        + STATS_COL_REDIRECTS + " INTEGER, " //
+                        + STATS_COL_CONNECTMS + " INTEGER, " //
+                        + STATS_COL_FIRSTBYTEMS + " INTEGER, " //
+                        + STATS_COL_TRANSFERMS + " INTEGER, " //
+                        + STATS_COL_BYTES + " INTEGER, " //
+                        + STATS_COL_PARSEMS + " INTEGER, " //
+                        + STATS_COL_ITEMSSEEN + " INTEGER, " //
+                        + STATS_COL_ITEMSNEW + " INTEGER, " //
+                        + STATS_COL_ITEMSSKIPPED + " INTEGER, " //
+                        + STATS_COL_INSERTMS + " INTEGER, " //
+                        + STATS_COL_MOVEMS + " INTEGER, " //
+                        + STATS_COL_INGESTED + " INTEGER" //
                         + ");";
     }
 
@@ -286,7 +513,22 @@ public class FeedProvider extends ContentProvider {
                         + FEEDS_COL_SITEURL + ","//
                         + FEEDS_COL_LASTPOLLDATE + ", "//
                         + FEEDS_COL_AUTOPOLLMIN + ", " //
-                        + FEEDS_COL_CLEANHTML //
+                        + FEEDS_COL_CLEANHTML + ", " //
+                        + FEEDS_COL_ETAG + ", " //
+                        + FEEDS_COL_LASTMODIFIED + ", " //
+                        + FEEDS_COL_BYTESRECEIVED + ", " //
+                        + FEEDS_COL_BYTESDECODED + ", " //
+                        + FEEDS_COL_MAXBYTES + ", " //
+                        + FEEDS_COL_BODYHASH + ", " //
+                        + FEEDS_COL_UNCHANGEDSKIPS + ", " //
+                        + FEEDS_COL_FAILURES + ", " //
+                        + FEEDS_COL_NEXTRETRY + ", " //
+                        + FEEDS_COL_BREAKER + ", " //
+                        + FEEDS_COL_REDIRECTS + ", " //
+                        + FEEDS_COL_PARSER + ", " //
+                        + FEEDS_COL_HINTMIN + ", " //
+                        + FEEDS_COL_SKIPHOURS + ", " //
+                        + FEEDS_COL_SKIPDAYS //
                         + " from " + FEEDS_NAME;
         final Cursor res = db.getReadableDatabase().rawQuery(q, new String[] {});
         return res;
@@ -300,7 +542,22 @@ public class FeedProvider extends ContentProvider {
                         + FEEDS_COL_SITEURL + ","//
                         + FEEDS_COL_LASTPOLLDATE + ", "//
                         + FEEDS_COL_AUTOPOLLMIN + ", " //
-                        + FEEDS_COL_CLEANHTML //
+                        + FEEDS_COL_CLEANHTML + ", " //
+                        + FEEDS_COL_ETAG + ", " //
+                        + FEEDS_COL_LASTMODIFIED + ", " //
+                        + FEEDS_COL_BYTESRECEIVED + ", " //
+                        + FEEDS_COL_BYTESDECODED + ", " //
+                        + FEEDS_COL_MAXBYTES + ", " //
+                        + FEEDS_COL_BODYHASH + ", " //
+                        + FEEDS_COL_UNCHANGEDSKIPS + ", " //
+                        + FEEDS_COL_FAILURES + ", " //
+                        + FEEDS_COL_NEXTRETRY + ", " //
+                        + FEEDS_COL_BREAKER + ", " //
+                        + FEEDS_COL_REDIRECTS + ", " //
+                        + FEEDS_COL_PARSER + ", " //
+                        + FEEDS_COL_HINTMIN + ", " //
+                        + FEEDS_COL_SKIPHOURS + ", " //
+                        + FEEDS_COL_SKIPDAYS //
                         + " from " + FEEDS_NAME //
                         + " where _id=?";
         final Cursor res = db.getReadableDatabase().rawQuery(q, new String[] {
@@ -337,6 +594,15 @@ public class FeedProvider extends ContentProvider {
     }
 
 
+    private void countUnchanged(long id) {
+        db.getWritableDatabase().execSQL(
+                        "update " + FEEDS_NAME + " set " + FEEDS_COL_UNCHANGEDSKIPS + "=coalesce("
+                                        + FEEDS_COL_UNCHANGEDSKIPS + ",0)+1 where _id=?", new Object[] {
+                            id
+                        });
+    }
+
+
     public void updateFeed(long id, boolean forceName, ContentValues cv) {
         db.getWritableDatabase().beginTransaction();
 
@@ -370,9 +636,56 @@ public class FeedProvider extends ContentProvider {
 
 
     public int removeFeed(long feedId) {
+        db.getWritableDatabase().delete(STATS_NAME, STATS_COL_FEEDID + "=?", new String[] {
+            "" + feedId
+        });
         return db.getWritableDatabase().delete(FEEDS_NAME, "_id=?", new String[] {
             "" + feedId
         });
     }
 
+
+    /**
+     * Stores the statistics of several polls in one transaction. Afterwards
+     * only the newest {@link #MAX_STATS_PER_FEED} rows of each feed involved
+     * are kept.
+     * 
+     * @param rows
+     *            the statistics
+     * @return the number of rows stored
+     */
+    private int addStats(ContentValues[] rows) {
+        final SQLiteDatabase wdb = db.getWritableDatabase();
+        final Set<Long> feedIds = new HashSet<Long>();
+        int count = 0;
+        wdb.beginTransaction();
+        try {
+            for (ContentValues cv : rows) {
+                if (wdb.insert(STATS_NAME, STATS_COL_FEEDID, cv) != -1) {
+                    feedIds.add(cv.getAsLong(STATS_COL_FEEDID));
+                    count++;
+                }
+            }
+            for (Long feedId : feedIds) {
+                wdb.execSQL("delete from " + STATS_NAME + " where " + STATS_COL_FEEDID + "=? and _id not in "
+                                + "(select _id from " + STATS_NAME + " where " + STATS_COL_FEEDID
+                                + "=? order by _id desc limit " + MAX_STATS_PER_FEED + ")", new Object[] {
+                                feedId, feedId
+                });
+            }
+            wdb.setTransactionSuccessful();
+        }
+        finally {
+            wdb.endTransaction();
+        }
+        return count;
+    }
+
+
+    private Cursor getStatsCursor(long feedId) {
+        return db.getReadableDatabase().query(STATS_NAME, null, STATS_COL_FEEDID + "=?", new String[] {
+            Long.toString(feedId)
+        }, null, null, "_id DESC");
+    }
+
 }
@@ -22,7 +22,9 @@ import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import de.codefu.android.rss.db.UriHelper.UriParts;
 
@@ -36,6 +38,8 @@ import de.codefu.android.rss.db.UriHelper.UriParts;
  * <li>.../11 - an action regarding one item (11)</li>
  * <li>.../feed/22 - an action regarding items in feed 22</li>
  * <li>.../...#read - an action regarding read items</li>
+ * <li>.../feed/22#known - the GUIDs and links of the items stored for feed
+ * 22</li>
  * </ul>
  * 
  * @author mj
@@ -64,13 +68,45 @@ public class ItemProvider extends ContentProvider {
     public static final String KEEP = "keep";
     public static final String UNKEEP = "unkeep";
 
-    public static final String AUX = "aux";
+    /**
+     * Fragment that designates the items of a feed that are not yet moved to
+     * the final table.
+     */
+    public static final String TMP = "tmp";
+
+    /**
+     * Fragment that designates the GUIDs and links of the stored items of a
+     * feed.
+     */
+    public static final String KNOWN = "known";
 
     public static final Uri CONTENT_URI_FEED = Uri.parse("content://de.codefu.rss.itemprovider/" + FEED);
 
-    public static final Uri CONTENT_URI_AUX = Uri.parse("content://de.codefu.rss.itemprovider/" + AUX);
+    /**
+     * Path of the URI returned when the items of a feed were moved to the
+     * final table. Its ID is the number of items that were new.
+     */
+    public static final String MOVED = "moved";
+
+    public static final Uri CONTENT_URI_MOVED = Uri.parse("content://de.codefu.rss.itemprovider/" + MOVED);
 
     private static final String TYPE = "de.codefu.rss.item";
+    /**
+     * Inserts an item into the temporary table. Compiled once per bulk insert.
+     */
+    private static final String INSERT_TMP = "INSERT INTO " + ITEMS_TMP_NAME + " (" + ITEMS_COL_FEEDID + ", "
+                    + ITEMS_COL_GUID + ", " + ITEMS_COL_HEADLINE + ", " + ITEMS_COL_CONTENT + ", " + ITEMS_COL_DATE
+                    + ", " + ITEMS_COL_LINK + ") VALUES (?, ?, ?, ?, ?, ?)";
+    /**
+     * Copies the items of a feed from the temporary to the final table, the
+     * oldest last so that newer items get lower IDs like in the feed.
+     */
+    private static final String MOVE_TMP = "INSERT INTO " + ITEMS_NAME + " (" + ITEMS_COL_READ + ", "
+                    + ITEMS_COL_FEEDID + ", " + ITEMS_COL_GUID + ", " + ITEMS_COL_HEADLINE + ", " + ITEMS_COL_CONTENT
+                    + ", " + ITEMS_COL_DATE + ", " + ITEMS_COL_KEEPER + ", " + ITEMS_COL_LINK + ") SELECT "
+                    + ITEMS_COL_READ + ", " + ITEMS_COL_FEEDID + ", " + ITEMS_COL_GUID + ", " + ITEMS_COL_HEADLINE
+                    + ", " + ITEMS_COL_CONTENT + ", " + ITEMS_COL_DATE + ", " + ITEMS_COL_KEEPER + ", " + ITEMS_COL_LINK
+                    + " FROM " + ITEMS_TMP_NAME + " WHERE " + ITEMS_COL_FEEDID + "=? ORDER BY _id DESC";
     private static final String SKIP_KEEPERS = " AND " + ITEMS_COL_KEEPER + " IS NULL OR 0=" + ITEMS_COL_KEEPER;
 
     private DB db;
@@ -87,19 +123,16 @@ public class ItemProvider extends ContentProvider {
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         UriParts up = UriHelper.analyze(uri);
         if (up.hasPath(FEED) && up.hasId()) {
-            if (!up.hasFragment(READ)) {
+            if (up.hasFragment(TMP)) {
+                return removeTmpItemsFromFeed(up.id);
+            }
+            else if (!up.hasFragment(READ)) {
                 return removeAllItemsFromFeed(up.id);
             }
             else {
                 return removeReadItemsFromFeed(up.id);
             }
         }
-        else if (up.hasPath(AUX) && !up.hasId()) {
-            cleanAuxTable();
-        }
-        else if (up.hasPath(AUX) && up.hasId()) {
-            deleteAuxContent(up.id);
-        }
         return 0;
     }
 
@@ -128,23 +161,30 @@ public class ItemProvider extends ContentProvider {
         UriParts up = UriHelper.analyze(uri);
         if (up.hasPath(FEED) && up.hasId()) {
             if (up.hasFragment("move")) {
-                moveItemsToFinalTable(up.id);
+                return ContentUris.withAppendedId(CONTENT_URI_MOVED, moveItemsToFinalTable(up.id));
             }
             else {
                 addItemToTmpTable(up.id, values);
             }
         }
-        else if (up.hasPath(AUX) && !up.hasId()) {
-            String content = values.getAsString("content");
-            long id = addAuxContent(content);
-            if (id != -1) {
-                return ContentUris.withAppendedId(CONTENT_URI_AUX, id);
-            }
-        }
         return null;
     }
 
 
+    /**
+     * Adds the items to the temporary table of the feed given by a URI like
+     * .../feed/22. All items are written in one transaction.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        UriParts up = UriHelper.analyze(uri);
+        if (up.hasPath(FEED) && up.hasId()) {
+            return addItemsToTmpTable(up.id, values);
+        }
+        return super.bulkInsert(uri, values);
+    }
+
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         UriParts up = UriHelper.analyze(uri);
@@ -158,11 +198,11 @@ public class ItemProvider extends ContentProvider {
             }
         }
         else if (up.hasPath(FEED) && up.hasId()) {
+            if (up.hasFragment(KNOWN)) {
+                return getKnownItemsCursor(up.id);
+            }
             return getItemsCursor(up.id);
         }
-        else if (up.hasPath(AUX) && up.hasId()) {
-            return getAuxContent(up.id);
-        }
         return null;
     }
 
@@ -232,6 +272,63 @@ public class ItemProvider extends ContentProvider {
     }
 
 
+    /**
+     * Adds items to the temporary table in one transaction with one compiled
+     * statement.
+     * 
+     * @param feedId
+     *            the ID of the feed the items belong to
+     * @param values
+     *            the items
+     * @return the number of items that were not dropped as duplicates
+     */
+    public int addItemsToTmpTable(long feedId, ContentValues[] values) {
+        final SQLiteDatabase wdb = db.getWritableDatabase();
+        int inserted = 0;
+        wdb.beginTransaction();
+        try {
+            final SQLiteStatement insert = wdb.compileStatement(INSERT_TMP);
+            try {
+                for (ContentValues cv : values) {
+                    insert.bindLong(1, feedId);
+                    bindString(insert, 2, cv.getAsString(ITEMS_COL_GUID));
+                    bindString(insert, 3, cv.getAsString(ITEMS_COL_HEADLINE));
+                    bindString(insert, 4, cv.getAsString(ITEMS_COL_CONTENT));
+                    final Long date = cv.getAsLong(ITEMS_COL_DATE);
+                    if (date != null) {
+                        insert.bindLong(5, date);
+                    }
+                    else {
+                        insert.bindNull(5);
+                    }
+                    bindString(insert, 6, cv.getAsString(ITEMS_COL_LINK));
+                    if (insert.executeInsert() != -1) {
+                        inserted++;
+                    }
+                }
+            }
+            finally {
+                insert.close();
+            }
+            wdb.setTransactionSuccessful();
+        }
+        finally {
+            wdb.endTransaction();
+        }
+        return inserted;
+    }
+
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        }
+        else {
+            statement.bindNull(index);
+        }
+    }
+
+
     // public Item getItem(long id) {
     // Item item = null;
     //
@@ -285,6 +382,15 @@ public class ItemProvider extends ContentProvider {
     }
 
 
+    private Cursor getKnownItemsCursor(long feedId) {
+        return db.getReadableDatabase().query(ITEMS_NAME, new String[] {
+                        ITEMS_COL_GUID, ITEMS_COL_LINK
+        }, ITEMS_COL_FEEDID + "=?", new String[] {
+            Long.toString(feedId)
+        }, null, null, null);
+    }
+
+
     private Cursor getKeeperCursor(long id) {
         final Cursor res = db.getReadableDatabase().query(ITEMS_NAME, new String[] {
                         "_id", ITEMS_COL_KEEPER
@@ -302,6 +408,13 @@ public class ItemProvider extends ContentProvider {
     }
 
 
+    public int removeTmpItemsFromFeed(long feedId) {
+        return db.getWritableDatabase().delete(ITEMS_TMP_NAME, ITEMS_COL_FEEDID + "=?", new String[] {
+            Long.toString(feedId)
+        });
+    }
+
+
     public int setItemRead(long id) {
         final ContentValues cv = new ContentValues();
         cv.put(ITEMS_COL_READ, 1);
@@ -328,104 +441,33 @@ public class ItemProvider extends ContentProvider {
     }
 
 
-    public void moveItemsToFinalTable(long feedId) {
-        final SQLiteDatabase wdb = db.getWritableDatabase();
-        final Cursor c = wdb.query(ITEMS_TMP_NAME, new String[] {
-            "*"
-        }, ITEMS_COL_FEEDID + "=?", new String[] {
-            "" + feedId
-        }, null, null, "_id DESC");
-        final int idIndex = c.getColumnIndex("_id");
-        final String[] columnNames = c.getColumnNames();
-        while (c.moveToNext()) {
-            wdb.beginTransaction();
-            try {
-                final long id = c.getLong(idIndex);
-                final ContentValues cv = new ContentValues();
-                final int cc = c.getColumnCount();
-                for (int column = 0; (column < cc); column++) {
-                    if (column != idIndex) {
-                        cv.put(columnNames[column], c.getString(column));
-                    }
-                }
-                wdb.insert(ITEMS_NAME, ITEMS_COLHACK, cv);
-                wdb.delete(ITEMS_TMP_NAME, "_id=?", new String[] {
-                    Long.toString(id)
-                });
-                wdb.setTransactionSuccessful();
-            }
-            finally {
-                wdb.endTransaction();
-            }
-        }
-        c.close();
-    }
-
-
-    private static final String AUX_NAME = "tmp";
-    public static final String AUX_COL_CONTENT = "content";
-
-
-    public static String getCreateAuxTable() {
-        return "CREATE TABLE " + AUX_NAME + " (" //
-                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, " //
-                        + AUX_COL_CONTENT + " TEXT " //
-                        + ");";
-    }
-
-
-    private long addAuxContent(String content) {
-        final ContentValues values = new ContentValues();
-        values.put(AUX_COL_CONTENT, content);
-        return db.getWritableDatabase().insert(AUX_NAME, AUX_COL_CONTENT, values);
-    }
-
-
-    private Cursor getAuxContent(long id) {
-        final SQLiteDatabase wdb = db.getWritableDatabase();
-        wdb.beginTransaction();
-        try {
-            final String idStr = Long.toString(id);
-            final Cursor c = wdb.query(AUX_NAME, new String[] {
-                AUX_COL_CONTENT
-            }, "_id=?", new String[] {
-                idStr
-            }, null, null, null);
-            wdb.setTransactionSuccessful();
-            return c;
-        }
-        finally {
-            wdb.endTransaction();
-        }
-    }
-
-
-    private void deleteAuxContent(long id) {
-        final SQLiteDatabase wdb = db.getWritableDatabase();
-        wdb.beginTransaction();
-        try {
-            final String idStr = Long.toString(id);
-            wdb.delete(AUX_NAME, "_id=?", new String[] {
-                idStr
-            });
-            wdb.setTransactionSuccessful();
-        }
-        finally {
-            wdb.endTransaction();
-        }
-    }
-
-
-    private void cleanAuxTable() {
+    /**
+     * Moves the items of a feed from the temporary table to the final table
+     * with one statement in one transaction. Items that are already in the
+     * final table are dropped by its unique constraints.
+     * 
+     * @param feedId
+     *            the ID of the feed
+     * @return the number of items that were new
+     */
+    public int moveItemsToFinalTable(long feedId) {
         final SQLiteDatabase wdb = db.getWritableDatabase();
+        final String[] args = new String[] {
+            Long.toString(feedId)
+        };
+        final long moved;
         wdb.beginTransaction();
         try {
-            wdb.execSQL("delete from " + AUX_NAME + ";");
+            wdb.execSQL(MOVE_TMP, args);
+            // Rows dropped by ON CONFLICT IGNORE are not counted.
+            moved = DatabaseUtils.longForQuery(wdb, "select changes()", null);
+            wdb.delete(ITEMS_TMP_NAME, ITEMS_COL_FEEDID + "=?", args);
             wdb.setTransactionSuccessful();
         }
         finally {
             wdb.endTransaction();
         }
+        return (int) moved;
     }
 
 }
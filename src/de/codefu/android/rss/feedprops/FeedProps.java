@@ -18,12 +18,17 @@
  */
 package de.codefu.android.rss.feedprops;
 
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Date;
+
 import android.app.Activity;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.format.DateFormat;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ArrayAdapter;
@@ -76,6 +81,31 @@ public class FeedProps extends Activity {
                     FeedProvider.CLEAN_FULL_HTML, //
     };
 
+    /**
+     * Size limits in KB. 0 means the global default is used. The array has to
+     * be synchronized with {@link R.array.feedprops_maxbytes_sizes}.
+     */
+    private static final int[] maxKb = {
+                    0, // default
+                    256, //
+                    512, //
+                    1024, //
+                    2048, //
+                    4096, //
+                    8192, //
+                    16384, //
+    };
+
+    /**
+     * The parser engines. The array has to be synchronized with
+     * {@link R.array.feedprops_parser_types}.
+     */
+    private static final int[] parserTypes = {
+                    FeedProvider.PARSER_DEFAULT, //
+                    FeedProvider.PARSER_SAX, //
+                    FeedProvider.PARSER_PULL, //
+    };
+
     /**
      * Constant value to use when no feed ID is given. This should never happen,
      * though.
@@ -108,6 +138,18 @@ public class FeedProps extends Activity {
      * conversion.
      */
     private Spinner contentConvertField;
+    /**
+     * Reference to the Spinner that holds the possible size limits.
+     */
+    private Spinner maxBytesField;
+    /**
+     * Reference to the Spinner that holds the possible parser engines.
+     */
+    private Spinner parserField;
+    /**
+     * The URL of the feed when the activity was started.
+     */
+    private String oldUrl;
     /**
      * The ID of the RSS feed to edit.
      */
@@ -135,6 +177,9 @@ public class FeedProps extends Activity {
         final String url = c.getString(c.getColumnIndex(FeedProvider.FEEDS_COL_URL));
         final int fautoPollMin = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_AUTOPOLLMIN));
         final int cleanHtml = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_CLEANHTML));
+        final int fmaxKb = (int) (c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_MAXBYTES)) / 1024);
+        final int parser = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_PARSER));
+        final String stats = getStatsText(c);
 
         c.close();
 
@@ -143,6 +188,7 @@ public class FeedProps extends Activity {
 
         urlField = (TextView) findViewById(R.id.feedprops_url);
         urlField.setText(url);
+        oldUrl = url;
 
         autoPollField = (Spinner) findViewById(R.id.feedprops_autopoll_freq);
         ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this, R.array.feedprops_autopoll_freqs,
@@ -159,6 +205,23 @@ public class FeedProps extends Activity {
         contentConvertField.setAdapter(adapterCC);
         contentConvertField.setSelection(getValuePosition(cleanTypes, cleanHtml));
 
+        maxBytesField = (Spinner) findViewById(R.id.feedprops_maxbytes);
+        ArrayAdapter<CharSequence> adapterMB = ArrayAdapter.createFromResource(this,
+                        R.array.feedprops_maxbytes_sizes, android.R.layout.simple_spinner_item);
+        adapterMB.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        maxBytesField.setAdapter(adapterMB);
+        maxBytesField.setSelection(getValuePosition(maxKb, fmaxKb));
+
+        parserField = (Spinner) findViewById(R.id.feedprops_parser);
+        ArrayAdapter<CharSequence> adapterP = ArrayAdapter.createFromResource(this, R.array.feedprops_parser_types,
+                        android.R.layout.simple_spinner_item);
+        adapterP.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        parserField.setAdapter(adapterP);
+        parserField.setSelection(getValuePosition(parserTypes, parser));
+
+        final TextView statsField = (TextView) findViewById(R.id.feedprops_stats);
+        statsField.setText(stats);
+
         final Button saveButton = (Button) findViewById(R.id.feedprops_button_save);
         saveButton.setOnClickListener(new OnClickListener() {
 
@@ -178,6 +241,125 @@ public class FeedProps extends Activity {
     }
 
 
+    /**
+     * Builds the text that informs about the feed's downloads.
+     * 
+     * @param c
+     *            the cursor positioned at the feed
+     * @return the text to show
+     */
+    private String getStatsText(Cursor c) {
+        final StringBuilder sb = new StringBuilder();
+        final int ciReceived = c.getColumnIndex(FeedProvider.FEEDS_COL_BYTESRECEIVED);
+        if (c.isNull(ciReceived)) {
+            sb.append(getString(R.string.feedprops_stats_none));
+        }
+        else {
+            final long received = c.getLong(ciReceived);
+            final long decoded = c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_BYTESDECODED));
+            final int unchanged = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_UNCHANGEDSKIPS));
+            sb.append(getString(R.string.feedprops_stats_transfer, received, decoded));
+            sb.append("\n").append(getString(R.string.feedprops_stats_unchanged, unchanged));
+            final int redirects = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_REDIRECTS));
+            if (redirects > 0) {
+                sb.append("\n").append(getString(R.string.feedprops_stats_redirects, redirects));
+            }
+        }
+
+        final int failures = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_FAILURES));
+        if (failures > 0) {
+            final long nextRetryMs = c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_NEXTRETRY));
+            final Date nextRetry = new Date(nextRetryMs);
+            final String nextRetryStr = DateFormat.getDateFormat(this).format(nextRetry) + " "
+                            + DateFormat.getTimeFormat(this).format(nextRetry);
+            final int breaker = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_BREAKER));
+            final int textId = (breaker == FeedProvider.BREAKER_CLOSED) ? R.string.feedprops_stats_failures
+                            : R.string.feedprops_stats_breaker_open;
+            sb.append("\n").append(getString(textId, failures, nextRetryStr));
+        }
+
+        final String pollStats = getPollStatsText();
+        if (pollStats != null) {
+            sb.append("\n").append(pollStats);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Builds the text with the median and the 90th percentile of the download
+     * and processing times of the feed's last polls. Only polls that
+     * downloaded the feed completely and stored its items are counted; polls
+     * answered with 304 or with unchanged data are much faster and would
+     * hide how long a real update takes.
+     * 
+     * @return the text or null if the feed was not updated yet
+     */
+    private String getPollStatsText() {
+        final Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI_STATS, feedId);
+        final Cursor c = getContentResolver().query(uri, null, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        final long[] download = new long[c.getCount()];
+        final long[] processing = new long[c.getCount()];
+        int n = 0;
+        int itemsSeen = 0;
+        int itemsNew = 0;
+        int itemsSkipped = 0;
+        final int ciStatus = c.getColumnIndex(FeedProvider.STATS_COL_STATUS);
+        final int ciConnect = c.getColumnIndex(FeedProvider.STATS_COL_CONNECTMS);
+        final int ciFirstByte = c.getColumnIndex(FeedProvider.STATS_COL_FIRSTBYTEMS);
+        final int ciTransfer = c.getColumnIndex(FeedProvider.STATS_COL_TRANSFERMS);
+        final int ciParse = c.getColumnIndex(FeedProvider.STATS_COL_PARSEMS);
+        final int ciInsert = c.getColumnIndex(FeedProvider.STATS_COL_INSERTMS);
+        final int ciMove = c.getColumnIndex(FeedProvider.STATS_COL_MOVEMS);
+        final int ciSeen = c.getColumnIndex(FeedProvider.STATS_COL_ITEMSSEEN);
+        final int ciNew = c.getColumnIndex(FeedProvider.STATS_COL_ITEMSNEW);
+        final int ciSkipped = c.getColumnIndex(FeedProvider.STATS_COL_ITEMSSKIPPED);
+        final int ciIngested = c.getColumnIndex(FeedProvider.STATS_COL_INGESTED);
+        while (c.moveToNext()) {
+            if ((c.getInt(ciStatus) == HttpURLConnection.HTTP_OK) && (c.getInt(ciIngested) != 0)) {
+                download[n] = c.getLong(ciConnect) + c.getLong(ciFirstByte) + c.getLong(ciTransfer);
+                processing[n] = c.getLong(ciParse) + c.getLong(ciInsert) + c.getLong(ciMove);
+                itemsSeen += c.getInt(ciSeen);
+                itemsNew += c.getInt(ciNew);
+                itemsSkipped += c.getInt(ciSkipped);
+                n++;
+            }
+        }
+        c.close();
+        if (n == 0) {
+            return null;
+        }
+        Arrays.sort(download, 0, n);
+        Arrays.sort(processing, 0, n);
+        String text = getString(R.string.feedprops_stats_timing, n, percentile(download, n, 50),
+                        percentile(download, n, 90), percentile(processing, n, 50), percentile(processing, n, 90))
+                        + "\n" + getString(R.string.feedprops_stats_items, itemsNew, itemsSeen);
+        if (itemsSkipped > 0) {
+            text += "\n" + getString(R.string.feedprops_stats_skipped, itemsSkipped);
+        }
+        return text;
+    }
+
+
+    /**
+     * @param sorted
+     *            values sorted in ascending order
+     * @param n
+     *            the number of valid values
+     * @param p
+     *            the percentile to get
+     * @return the smallest value that is not less than p percent of the
+     *         values
+     */
+    private static long percentile(long[] sorted, int n, int p) {
+        final int rank = (p * n + 99) / 100;
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+
     private int getValuePosition(int[] array, int value) {
         int i = 0;
         while (i < array.length) {
@@ -196,6 +378,19 @@ public class FeedProps extends Activity {
         cv.put(FeedProvider.FEEDS_COL_URL, urlField.getText().toString());
         cv.put(FeedProvider.FEEDS_COL_AUTOPOLLMIN, pollFreqMin[autoPollField.getSelectedItemPosition()]);
         cv.put(FeedProvider.FEEDS_COL_CLEANHTML, cleanTypes[contentConvertField.getSelectedItemPosition()]);
+        cv.put(FeedProvider.FEEDS_COL_MAXBYTES, maxKb[maxBytesField.getSelectedItemPosition()] * 1024L);
+        cv.put(FeedProvider.FEEDS_COL_PARSER, parserTypes[parserField.getSelectedItemPosition()]);
+        if (!cv.getAsString(FeedProvider.FEEDS_COL_URL).equals(oldUrl)) {
+            // A new URL deserves a fresh start.
+            cv.put(FeedProvider.FEEDS_COL_FAILURES, 0);
+            cv.put(FeedProvider.FEEDS_COL_NEXTRETRY, 0);
+            cv.put(FeedProvider.FEEDS_COL_BREAKER, FeedProvider.BREAKER_CLOSED);
+            // The validators belong to the old URL and would make the new one
+            // look unchanged.
+            cv.putNull(FeedProvider.FEEDS_COL_ETAG);
+            cv.putNull(FeedProvider.FEEDS_COL_LASTMODIFIED);
+            cv.putNull(FeedProvider.FEEDS_COL_BODYHASH);
+        }
 
         Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
         uri = uri.buildUpon().encodedFragment(FeedProvider.FORCE_NAME_FRAGMENT).build();
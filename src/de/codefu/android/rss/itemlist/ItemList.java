@@ -104,7 +104,7 @@ public class ItemList extends ListActivity {
             setTitle(feedName);
         }
 
-        receiver = new CursorChangedReceiver(itemCursor);
+        receiver = new CursorChangedReceiver(itemCursor, feedId);
         registerReceiver(receiver, new IntentFilter(CursorChangedReceiver.DATA_CHANGED));
 
         registerForContextMenu(getListView());
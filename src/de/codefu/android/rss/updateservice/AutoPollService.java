@@ -38,6 +38,13 @@ import de.codefu.android.rss.db.FeedProvider;
  * When being called, iterates over all feeds and collects those that should be
  * called based on their last poll time and poll frequency. Then it sets the
  * alarm to the next time a feed wants to be polled.
+ * <p>
+ * Feeds that are backing off after failed polls (see {@link FeedBackoff}) are
+ * not polled before their next retry time.
+ * <p>
+ * The {@link UpdateHints} a feed declares are respected: the feed is not
+ * polled more often than it asks for, even if its poll frequency is higher,
+ * and not in the hours and on the days it asks to be skipped.
  * 
  * @author mj
  */
@@ -71,22 +78,37 @@ public class AutoPollService extends IntentService {
             final int idI = feeds.getColumnIndex("_id");
             final int lastPolledI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_LASTPOLLDATE);
             final int pollMinI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_AUTOPOLLMIN);
+            final int failuresI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_FAILURES);
+            final int nextRetryI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_NEXTRETRY);
+            final int hintMinI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_HINTMIN);
+            final int skipHoursI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_SKIPHOURS);
+            final int skipDaysI = feeds.getColumnIndex(FeedProvider.FEEDS_COL_SKIPDAYS);
 
             long nextAlarmMs = Long.MAX_VALUE;
             while (feeds.moveToNext()) {
                 final long feedId = feeds.getLong(idI);
                 final long lastPolledMs = feeds.getLong(lastPolledI);
                 final long pollMin = feeds.getLong(pollMinI);
+                final long nextRetryMs = feeds.getLong(nextRetryI);
+                final boolean failing = feeds.getInt(failuresI) > 0;
+                final boolean backingOff = failing && (now < nextRetryMs);
+                final int skipHours = feeds.getInt(skipHoursI);
+                final int skipDays = feeds.getInt(skipDaysI);
 
                 if (pollMin != 0) {
-                    final long pollMs = pollMin * 60 * 1000;
+                    final long pollMs = Math.max(pollMin, feeds.getLong(hintMinI)) * 60 * 1000;
                     long nextPollMs = lastPolledMs + pollMs;
-                    if (feedShouldBePolledNow(nextPollMs, now)) {
+                    if (failing && (nextRetryMs > nextPollMs)) {
+                        nextPollMs = nextRetryMs;
+                    }
+                    nextPollMs = UpdateHints.getNextAllowedMs(nextPollMs, skipHours, skipDays);
+                    if (!backingOff && feedShouldBePolledNow(nextPollMs, now)) {
                         Log.i(TAG, "polling " + feedId);
                         WakeLockHolder.getInstance().acquire(this);
 
                         ServiceComm.sendPollIntent(this, feedId);
-                        nextPollMs = System.currentTimeMillis() + pollMs;
+                        nextPollMs = UpdateHints.getNextAllowedMs(System.currentTimeMillis() + pollMs, skipHours,
+                                        skipDays);
                     }
 
                     if (nextPollMs < nextAlarmMs) {
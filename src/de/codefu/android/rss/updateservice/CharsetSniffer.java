@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+
+
+
+/**
+ * Finds out the character encoding of XML data and turns the byte stream into
+ * a character stream.
+ * <p>
+ * The beginning of the data is peeked at through a buffer and then rewound,
+ * so no bytes are lost. The encoding is taken from the first of these that is
+ * present:
+ * <ol>
+ * <li>a byte order mark,</li>
+ * <li>the charset parameter of the Content-Type header,</li>
+ * <li>the encoding in the XML declaration.</li>
+ * </ol>
+ * If none of them is present, UTF-8 is used.
+ *
+ * @author mj
+ */
+class CharsetSniffer {
+
+    static final String DEFAULT_ENCODING = "UTF-8";
+
+    /**
+     * The number of bytes that are looked at at most to find the XML
+     * declaration.
+     */
+    private static final int PEEK_SIZE = 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private CharsetSniffer() {
+    }
+
+
+    /**
+     * Wraps the given stream into a reader that decodes the data with the
+     * detected encoding. A byte order mark is skipped, everything else
+     * including the XML declaration is delivered by the reader.
+     *
+     * @param in
+     *            the XML data
+     * @param contentType
+     *            the value of the Content-Type header or null
+     * @return the reader for the data
+     * @throws IOException
+     *             if peeking at the data fails
+     */
+    public static Reader openReader(InputStream in, String contentType) throws IOException {
+        final BufferedInputStream bin = new BufferedInputStream(in, BUFFER_SIZE);
+        bin.mark(PEEK_SIZE);
+        final byte[] head = new byte[PEEK_SIZE];
+        final int len = peek(bin, head);
+        bin.reset();
+
+        final int bomLength = getBomLength(head, len);
+        long skip = bomLength;
+        while (skip > 0) {
+            skip -= bin.skip(skip);
+        }
+        return new InputStreamReader(bin, detectEncoding(head, len, contentType));
+    }
+
+
+    /**
+     * Reads the beginning of the data until the end of the XML declaration or
+     * until the buffer is full.
+     *
+     * @return the number of bytes read
+     */
+    private static int peek(InputStream in, byte[] head) throws IOException {
+        int len = 0;
+        while (len < head.length) {
+            final int n = in.read(head, len, head.length - len);
+            if (n == -1) {
+                break;
+            }
+            for (int i = len; i < len + n; i++) {
+                if (head[i] == '>') {
+                    return len + n;
+                }
+            }
+            len += n;
+        }
+        return len;
+    }
+
+
+    /**
+     * Finds out the encoding of the data.
+     *
+     * @param head
+     *            the first bytes of the data
+     * @param len
+     *            the number of valid bytes in head
+     * @param contentType
+     *            the value of the Content-Type header or null
+     * @return the name of a supported encoding
+     */
+    static String detectEncoding(byte[] head, int len, String contentType) {
+        String encoding = getEncodingFromBom(head, len);
+        if (encoding == null) {
+            encoding = getCharsetFromContentType(contentType);
+        }
+        if (!isSupported(encoding)) {
+            encoding = getEncodingFromTextDecl(head, len);
+        }
+        if (!isSupported(encoding)) {
+            encoding = DEFAULT_ENCODING;
+        }
+        return encoding;
+    }
+
+
+    private static String getEncodingFromBom(byte[] head, int len) {
+        if ((len >= 3) && ((head[0] & 0xff) == 0xef) && ((head[1] & 0xff) == 0xbb) && ((head[2] & 0xff) == 0xbf)) {
+            return "UTF-8";
+        }
+        if ((len >= 2) && ((head[0] & 0xff) == 0xfe) && ((head[1] & 0xff) == 0xff)) {
+            return "UTF-16BE";
+        }
+        if ((len >= 2) && ((head[0] & 0xff) == 0xff) && ((head[1] & 0xff) == 0xfe)) {
+            return "UTF-16LE";
+        }
+        return null;
+    }
+
+
+    private static int getBomLength(byte[] head, int len) {
+        final String encoding = getEncodingFromBom(head, len);
+        if (encoding == null) {
+            return 0;
+        }
+        return "UTF-8".equals(encoding) ? 3 : 2;
+    }
+
+
+    /**
+     * Extracts the charset parameter from a Content-Type header value like
+     * <code>application/rss+xml; charset="ISO-8859-1"</code>.
+     *
+     * @param contentType
+     *            the value of the header or null
+     * @return the charset or null if there is none
+     */
+    static String getCharsetFromContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        final String[] params = contentType.split(";");
+        for (int i = 1; i < params.length; i++) {
+            final String param = params[i].trim();
+            final int eq = param.indexOf('=');
+            if ((eq != -1) && "charset".equalsIgnoreCase(param.substring(0, eq).trim())) {
+                return unquote(param.substring(eq + 1).trim());
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Extracts the encoding from the XML declaration at the beginning of the
+     * data. Data without a byte order mark that starts with
+     * <code>&lt;?</code> in UTF-16 is recognized, too.
+     *
+     * @param head
+     *            the first bytes of the data
+     * @param len
+     *            the number of valid bytes in head
+     * @return the encoding or null if there is none
+     */
+    static String getEncodingFromTextDecl(byte[] head, int len) {
+        if ((len >= 4) && (head[0] == '<') && (head[1] == 0) && (head[2] == '?') && (head[3] == 0)) {
+            return "UTF-16LE";
+        }
+        if ((len >= 4) && (head[0] == 0) && (head[1] == '<') && (head[2] == 0) && (head[3] == '?')) {
+            return "UTF-16BE";
+        }
+
+        final int start = getBomLength(head, len);
+        final StringBuilder decl = new StringBuilder();
+        for (int i = start; i < len; i++) {
+            final char c = (char) (head[i] & 0xff);
+            decl.append(c);
+            if (c == '>') {
+                break;
+            }
+        }
+        final String line = decl.toString();
+        if (!line.startsWith("<?xml")) {
+            return null;
+        }
+        final int pos = line.indexOf("encoding");
+        if (pos == -1) {
+            return null;
+        }
+        String value = line.substring(pos + "encoding".length()).trim();
+        if (!value.startsWith("=")) {
+            return null;
+        }
+        value = value.substring(1).trim();
+        if (value.length() == 0) {
+            return null;
+        }
+        final char quote = value.charAt(0);
+        final int end = value.indexOf(quote, 1);
+        if (((quote != '"') && (quote != '\'')) || (end == -1)) {
+            return null;
+        }
+        return value.substring(1, end);
+    }
+
+
+    private static String unquote(String s) {
+        if ((s.length() >= 2) && (s.charAt(0) == '"') && (s.charAt(s.length() - 1) == '"')) {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+
+    private static boolean isSupported(String encoding) {
+        if ((encoding == null) || (encoding.length() == 0)) {
+            return false;
+        }
+        try {
+            return Charset.isSupported(encoding);
+        }
+        catch (IllegalCharsetNameException e) {
+            return false;
+        }
+    }
+}
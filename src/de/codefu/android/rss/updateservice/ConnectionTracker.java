@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+
+
+/**
+ * Decides whether the connections of one refresh cycle are kept alive and
+ * estimates how many connections were reused and how many had to be opened.
+ * <p>
+ * The connections themselves are pooled by {@link java.net.HttpURLConnection}
+ * as long as a response was read completely, the server did not ask to close
+ * the connection and it was not disconnected. Since the pool cannot be asked
+ * whether a connection was reused, the tracker mirrors it: a download that
+ * ends that way leaves an idle connection to its server (scheme, host and
+ * port) behind and the next download from that server takes it. The counts
+ * are therefore estimates.
+ *
+ * @author mj
+ */
+class ConnectionTracker {
+
+    private final boolean keepAlive;
+    /**
+     * Maximum number of idle connections kept per host.
+     */
+    private final int maxIdlePerHost;
+    /**
+     * Number of idle connections per server.
+     */
+    private final Map<String, Integer> idle = new HashMap<String, Integer>();
+    private int reused;
+    private int opened;
+
+    private static boolean poolConfigured;
+
+
+    /**
+     * Creates a tracker for one refresh cycle.
+     *
+     * @param keepAlive
+     *            whether connections should be kept alive and reused
+     * @param maxIdlePerHost
+     *            the maximum number of idle connections kept per host
+     */
+    public ConnectionTracker(boolean keepAlive, int maxIdlePerHost) {
+        this.keepAlive = keepAlive;
+        this.maxIdlePerHost = Math.max(1, maxIdlePerHost);
+    }
+
+
+    /**
+     * Sets up the connection pool of {@link java.net.HttpURLConnection}. The
+     * settings apply to the whole process, so only the first call has an
+     * effect. Whether a refresh cycle uses the pool is decided by its tracker.
+     *
+     * @param maxIdlePerHost
+     *            the maximum number of idle connections kept per host
+     */
+    public static synchronized void configurePool(int maxIdlePerHost) {
+        if (poolConfigured) {
+            return;
+        }
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(1, maxIdlePerHost)));
+        poolConfigured = true;
+    }
+
+
+    /**
+     * Tells from the headers of a response whether the server keeps the
+     * connection open after it.
+     *
+     * @param statusLine
+     *            the status line of the response, e.g. "HTTP/1.1 200 OK", or
+     *            null
+     * @param connection
+     *            the value of the Connection header or null
+     * @return true, if the connection may be reused
+     */
+    static boolean isPersistent(String statusLine, String connection) {
+        final String c = (connection != null) ? connection.toLowerCase() : "";
+        if (c.indexOf("close") != -1) {
+            return false;
+        }
+        if ((statusLine != null) && statusLine.startsWith("HTTP/1.0")) {
+            // HTTP/1.0 closes the connection unless asked not to.
+            return c.indexOf("keep-alive") != -1;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return true, if connections should not be disconnected after a
+     *         download
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+
+    /**
+     * Must be called before a download from the given URL starts.
+     *
+     * @param url
+     *            the URL
+     */
+    public synchronized void open(URL url) {
+        final String server = getServer(url);
+        final int n = getIdle(server);
+        if (n > 0) {
+            idle.put(server, n - 1);
+            reused++;
+        }
+        else {
+            opened++;
+        }
+    }
+
+
+    /**
+     * Must be called after a download from the given URL finished.
+     *
+     * @param url
+     *            the URL
+     * @param reusable
+     *            true, if the response was read completely, the server keeps
+     *            the connection open (see
+     *            {@link #isPersistent(String, String)}) and the connection was
+     *            left open
+     */
+    public synchronized void release(URL url, boolean reusable) {
+        if (keepAlive && reusable) {
+            final String server = getServer(url);
+            idle.put(server, Math.min(getIdle(server) + 1, maxIdlePerHost));
+        }
+    }
+
+
+    /**
+     * @return the estimated number of downloads that used an existing
+     *         connection
+     */
+    public synchronized int getReused() {
+        return reused;
+    }
+
+
+    /**
+     * @return the estimated number of downloads that needed a new connection
+     */
+    public synchronized int getOpened() {
+        return opened;
+    }
+
+
+    /**
+     * @return a short description of the counters for logging
+     */
+    public synchronized String getSummary() {
+        return "connections (estimated): " + reused + " reused, " + opened + " new"
+                        + (keepAlive ? "" : " (keep-alive off)");
+    }
+
+
+    private int getIdle(String server) {
+        final Integer n = idle.get(server);
+        return (n != null) ? n : 0;
+    }
+
+
+    /**
+     * @return the key of the pool a connection to the URL belongs to
+     */
+    private static String getServer(URL url) {
+        final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+}
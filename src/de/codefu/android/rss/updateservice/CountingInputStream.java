@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * An input stream that counts the bytes read through it.
+ * 
+ * @author mj
+ */
+class CountingInputStream extends FilterInputStream {
+
+    /**
+     * The number of bytes read so far.
+     */
+    private long count;
+
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+            count++;
+        }
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        final int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            count += n;
+        }
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
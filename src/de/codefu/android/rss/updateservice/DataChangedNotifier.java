@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+
+
+/**
+ * Collects the IDs of the feeds whose items changed and announces them with
+ * one data changed broadcast instead of one per feed.
+ * <p>
+ * A broadcast is sent at most every {@link #MIN_INTERVAL_MS} milliseconds
+ * while feeds are processed. A change that comes in too early is sent when
+ * the interval is over, so the UI does not wait for the next feed to see
+ * it. Changes that came in since the last broadcast are sent by
+ * {@link #flush()}, which must be called when the processing is over.
+ *
+ * @author mj
+ */
+class DataChangedNotifier {
+
+    /**
+     * The minimum time in milliseconds between two broadcasts.
+     */
+    static final long MIN_INTERVAL_MS = 2000;
+
+    private final Context context;
+    /**
+     * Runs the delayed broadcasts. Uses the main thread because the threads
+     * that report changes are busy or have no looper.
+     */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable delayedFlush = new Runnable() {
+
+        public void run() {
+            flush();
+        }
+    };
+    private final Set<Long> changed = new HashSet<Long>();
+    private boolean scheduled;
+    private long lastSentMs;
+    private int sent;
+    private int notified;
+
+
+    /**
+     * @param context
+     *            the context to send the broadcasts with
+     */
+    public DataChangedNotifier(Context context) {
+        this.context = context;
+        this.lastSentMs = SystemClock.uptimeMillis();
+    }
+
+
+    /**
+     * Notes that the items of a feed changed. Sends a broadcast if the last
+     * one is long enough ago, or else schedules one for when it is.
+     *
+     * @param feedId
+     *            the ID of the feed
+     */
+    public void feedChanged(long feedId) {
+        final long[] feedIds;
+        synchronized (this) {
+            changed.add(feedId);
+            notified++;
+            final long sinceMs = SystemClock.uptimeMillis() - lastSentMs;
+            if (sinceMs < MIN_INTERVAL_MS) {
+                if (!scheduled) {
+                    scheduled = true;
+                    handler.postDelayed(delayedFlush, MIN_INTERVAL_MS - sinceMs);
+                }
+                return;
+            }
+            feedIds = take();
+        }
+        ServiceComm.sendDataChangedBroadcast(context, feedIds);
+    }
+
+
+    /**
+     * Sends a broadcast for the changes that were not announced yet.
+     */
+    public void flush() {
+        final long[] feedIds;
+        synchronized (this) {
+            if (changed.isEmpty()) {
+                return;
+            }
+            feedIds = take();
+        }
+        ServiceComm.sendDataChangedBroadcast(context, feedIds);
+    }
+
+
+    /**
+     * @return a short description of the counters for logging
+     */
+    public synchronized String getSummary() {
+        return "data changed: " + notified + " feeds, " + sent + " broadcasts";
+    }
+
+
+    private long[] take() {
+        final long[] feedIds = new long[changed.size()];
+        int i = 0;
+        for (Long feedId : changed) {
+            feedIds[i++] = feedId;
+        }
+        changed.clear();
+        if (scheduled) {
+            scheduled = false;
+            handler.removeCallbacks(delayedFlush);
+        }
+        lastSentMs = SystemClock.uptimeMillis();
+        sent++;
+        return feedIds;
+    }
+}
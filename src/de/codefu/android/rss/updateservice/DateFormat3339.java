@@ -19,89 +19,365 @@
 package de.codefu.android.rss.updateservice;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Locale;
 import java.util.TimeZone;
 
 
 
 /**
- * Parser for the date format from RFC 3339.
+ * Parser for the date formats used in feeds: the one from RFC 3339 (Atom,
+ * Dublin Core) and the one from RFC 822 (RSS).
+ * <p>
+ * The parser works on the characters of the string and computes the time
+ * directly, so the only object created per call is the resulting
+ * {@link Date}. It has no state and can be used by several threads at the
+ * same time. Time zone abbreviations are looked up in a fixed table.
  * 
  * @author mj
  */
 class DateFormat3339 {
 
-    private static final SimpleDateFormat basicf = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss Z", Locale.US);
-    private static final SimpleDateFormat fancyf = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss z", Locale.US);
-    private static final SimpleDateFormat datef = new SimpleDateFormat("yyyy-MM-dd");
-    private static final SimpleDateFormat timef = new SimpleDateFormat("HH:mm:ss");
+    private static final long MS_PER_MINUTE = 60 * 1000L;
 
+    private static final long MS_PER_DAY = 24 * 60 * MS_PER_MINUTE;
 
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct",
+                    "nov", "dec"};
+
+    /**
+     * The time zone abbreviations that are understood in RFC 822 dates.
+     * Besides the ones from RFC 822 these are the ones that are common in
+     * feeds, including the German ones.
+     */
+    private static final String[] ZONE_NAMES = {"GMT", "UT", "UTC", "Z", "EST", "EDT", "CST", "CDT", "MST", "MDT",
+                    "PST", "PDT", "AKST", "AKDT", "HST", "WET", "WEST", "BST", "CET", "CEST", "MET", "MEST", "MEZ",
+                    "MESZ", "EET", "EEST", "MSK", "JST", "AEST", "AEDT", "NZST", "NZDT"};
+
+    /**
+     * The offsets from UTC in minutes of the abbreviations in
+     * {@link #ZONE_NAMES}.
+     */
+    private static final int[] ZONE_OFFSETS = {0, 0, 0, 0, -300, -240, -360, -300, -420, -360, -480, -420, -540,
+                    -480, -600, 0, 60, 60, 60, 120, 60, 120, 60, 120, 120, 180, 180, 540, 600, 660, 720, 780};
+
+    /**
+     * Marks a missing time zone in the result of the offset parsing.
+     */
+    private static final int NO_OFFSET = Integer.MIN_VALUE;
+
+
+    private DateFormat3339() {
+    }
+
+
+    /**
+     * Parses a date in one of the two formats.
+     * 
+     * @param string
+     *            the date
+     * @param tz
+     *            the time zone to use if the date has none
+     * @return the date
+     * @throws ParseException
+     *             if the string is not a date in one of the formats
+     */
     public static Date parse(String string, TimeZone tz) throws ParseException {
-        Date out;
-        try {
-            out = parseRFC3339(string, tz);
+        final int start = skipSpace(string, 0);
+        if (isDigits(string, start, 4) && (charAt(string, start + 4) == '-')) {
+            return parseRFC3339(string, tz);
         }
-        catch (ParseException e) {
-            out = parseXX(string);
-        }
-        return out;
+        return parseRFC822(string, tz);
     }
 
 
-    // 2011-04-17T22:19:04+02:00
+    /**
+     * Parses a date like <code>2011-04-17T22:19:04+02:00</code> or
+     * <code>2011-04-17 22:19:04.250Z</code>.
+     * 
+     * @param string
+     *            the date
+     * @param tz
+     *            the time zone to use if the date has none
+     * @return the date
+     * @throws ParseException
+     *             if the string is not a date in the format
+     */
     public static Date parseRFC3339(String string, TimeZone tz) throws ParseException {
-        string = string.toUpperCase();
-        String[] parts = string.split("T");
-        if (parts.length != 2) {
-            parts = string.split(" ");
-            if (parts.length != 2) {
-                throw new ParseException("No date time sep found", 0);
+        int pos = skipSpace(string, 0);
+        final int year = parseNumber(string, pos, 4);
+        pos = expect(string, pos + 4, '-');
+        final int month = parseNumber(string, pos, 2);
+        pos = expect(string, pos + 2, '-');
+        final int day = parseNumber(string, pos, 2);
+        pos += 2;
+
+        final char sep = charAt(string, pos);
+        if ((sep != 'T') && (sep != 't') && (sep != ' ')) {
+            throw new ParseException("No date time sep found", pos);
+        }
+        pos++;
+        final int hour = parseNumber(string, pos, 2);
+        pos = expect(string, pos + 2, ':');
+        final int minute = parseNumber(string, pos, 2);
+        pos = expect(string, pos + 2, ':');
+        final int second = parseNumber(string, pos, 2);
+        pos += 2;
+
+        int millis = 0;
+        if (charAt(string, pos) == '.') {
+            pos++;
+            int scale = 100;
+            while (isDigit(charAt(string, pos))) {
+                millis += (charAt(string, pos) - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+        }
+
+        final long local = toMillis(string, year, month, day, hour, minute, second) + millis;
+        final int offset = parseOffset(string, pos);
+        return new Date(toUtc(local, offset, tz));
+    }
+
+
+    /**
+     * Parses a date like <code>Sun, 17 Jul 2011 21:56:57 +0200</code> or
+     * <code>17 Jul 2011 16:50 MEST</code>.
+     * 
+     * @param string
+     *            the date
+     * @param tz
+     *            the time zone to use if the date has none
+     * @return the date
+     * @throws ParseException
+     *             if the string is not a date in the format
+     */
+    public static Date parseRFC822(String string, TimeZone tz) throws ParseException {
+        int pos = skipSpace(string, 0);
+        if (isLetter(charAt(string, pos))) {
+            // Day of the week
+            pos = skipLetters(string, pos);
+            if (charAt(string, pos) == ',') {
+                pos++;
+            }
+            pos = skipSpace(string, pos);
+        }
+
+        int digits = countDigits(string, pos);
+        if ((digits < 1) || (digits > 2)) {
+            throw new ParseException("No day found", pos);
+        }
+        final int day = parseNumber(string, pos, digits);
+        pos = skipSpace(string, pos + digits);
+
+        final int month = parseMonth(string, pos);
+        pos = skipSpace(string, skipLetters(string, pos));
+
+        digits = countDigits(string, pos);
+        int year = parseNumber(string, pos, digits);
+        if (digits == 2) {
+            year += (year < 50) ? 2000 : 1900;
+        }
+        else if (digits != 4) {
+            throw new ParseException("No year found", pos);
+        }
+        pos = skipSpace(string, pos + digits);
+
+        final int hour = parseNumber(string, pos, 2);
+        pos = expect(string, pos + 2, ':');
+        final int minute = parseNumber(string, pos, 2);
+        pos += 2;
+        int second = 0;
+        if (charAt(string, pos) == ':') {
+            second = parseNumber(string, pos + 1, 2);
+            pos += 3;
+        }
+
+        final long local = toMillis(string, year, month, day, hour, minute, second);
+        final int offset = parseOffset(string, skipSpace(string, pos));
+        return new Date(toUtc(local, offset, tz));
+    }
+
+
+    /**
+     * Computes the milliseconds since the epoch for a date and time in UTC.
+     */
+    private static long toMillis(String string, int year, int month, int day, int hour, int minute, int second)
+                    throws ParseException {
+        if ((month < 1) || (month > 12) || (day < 1) || (day > 31) || (hour > 24) || (minute > 59) || (second > 60)) {
+            throw new ParseException("Field out of range: " + string, 0);
+        }
+        // Days since 1970-01-01 of the proleptic Gregorian calendar, with
+        // years starting in March so the leap day is the last day.
+        final int y = (month <= 2) ? year - 1 : year;
+        final int era = y / 400;
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        final long days = era * 146097L + dayOfEra - 719468;
+        return days * MS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L;
+    }
+
+
+    /**
+     * Turns a local time into UTC.
+     * 
+     * @param local
+     *            the local time as if it was UTC
+     * @param offset
+     *            the offset of the local time in minutes or
+     *            {@link #NO_OFFSET}
+     * @param tz
+     *            the time zone to use if there is no offset
+     */
+    private static long toUtc(long local, int offset, TimeZone tz) {
+        if (offset != NO_OFFSET) {
+            return local - offset * MS_PER_MINUTE;
+        }
+        final long guess = local - tz.getOffset(local);
+        return local - tz.getOffset(guess);
+    }
+
+
+    /**
+     * Parses the time zone at the end of a date: <code>Z</code>, a numeric
+     * offset like <code>+02:00</code> or <code>-0500</code>, an abbreviation
+     * from {@link #ZONE_NAMES} or nothing.
+     * 
+     * @return the offset from UTC in minutes or {@link #NO_OFFSET}
+     */
+    private static int parseOffset(String string, int pos) throws ParseException {
+        final int end = skipSpaceBackwards(string, string.length());
+        if (pos >= end) {
+            return NO_OFFSET;
+        }
+        final char c = string.charAt(pos);
+        if ((c == '+') || (c == '-')) {
+            return parseNumericOffset(string, pos, end);
+        }
+        final int nameEnd = skipLetters(string, pos);
+        final int nameLength = nameEnd - pos;
+        for (int i = 0; i < ZONE_NAMES.length; i++) {
+            if ((ZONE_NAMES[i].length() == nameLength) && string.regionMatches(true, pos, ZONE_NAMES[i], 0, nameLength)) {
+                if (nameEnd == end) {
+                    return ZONE_OFFSETS[i];
+                }
+                // Like GMT+02:00
+                return ZONE_OFFSETS[i] + parseNumericOffset(string, nameEnd, end);
             }
         }
+        throw new ParseException("Unknown time zone: " + string, pos);
+    }
 
-        final String fullDate = parts[0];
-        final String fullTime = parts[1];
 
-        final Date date = datef.parse(fullDate);
+    private static int parseNumericOffset(String string, int pos, int end) throws ParseException {
+        final char sign = charAt(string, pos);
+        if ((sign != '+') && (sign != '-')) {
+            throw new ParseException("Bad time zone: " + string, pos);
+        }
+        pos++;
+        final int hours = parseNumber(string, pos, 2);
+        pos += 2;
+        if (charAt(string, pos) == ':') {
+            pos++;
+        }
+        int minutes = 0;
+        if (pos < end) {
+            minutes = parseNumber(string, pos, 2);
+            pos += 2;
+        }
+        if ((pos != end) || (minutes > 59)) {
+            throw new ParseException("Bad time zone: " + string, pos);
+        }
+        final int offset = hours * 60 + minutes;
+        return (sign == '-') ? -offset : offset;
+    }
 
-        final String partialTime = fullTime.substring(0, 8);
-        final Date time = timef.parse(partialTime);
 
-        int timeOffsetPos = 8;
-        if (fullTime.charAt(timeOffsetPos) == '.') {
-            timeOffsetPos += 2;
+    private static int parseMonth(String string, int pos) throws ParseException {
+        if (pos + 3 <= string.length()) {
+            for (int i = 0; i < MONTHS.length; i++) {
+                if (string.regionMatches(true, pos, MONTHS[i], 0, 3)) {
+                    return i + 1;
+                }
+            }
         }
+        throw new ParseException("No month found: " + string, pos);
+    }
+
 
-        final TimeZone timezone;
-        final String timeOffset = fullTime.substring(timeOffsetPos);
-        final char firstChar = timeOffset.charAt(0);
-        if (firstChar == 'Z') {
-            timezone = TimeZone.getTimeZone("UTC");
+    private static int parseNumber(String string, int pos, int digits) throws ParseException {
+        if (!isDigits(string, pos, digits)) {
+            throw new ParseException("Number expected: " + string, pos);
         }
-        else {
-            timezone = TimeZone.getTimeZone("GMT" + timeOffset);
+        int n = 0;
+        for (int i = pos; i < pos + digits; i++) {
+            n = n * 10 + (string.charAt(i) - '0');
+        }
+        return n;
+    }
+
+
+    private static int expect(String string, int pos, char c) throws ParseException {
+        if (charAt(string, pos) != c) {
+            throw new ParseException("'" + c + "' expected: " + string, pos);
+        }
+        return pos + 1;
+    }
+
+
+    private static boolean isDigits(String string, int pos, int digits) {
+        return (digits > 0) && (countDigits(string, pos) >= digits);
+    }
+
+
+    private static int countDigits(String string, int pos) {
+        int i = pos;
+        while (isDigit(charAt(string, i))) {
+            i++;
         }
+        return i - pos;
+    }
 
-        GregorianCalendar c = new GregorianCalendar(timezone);
-        c.set(date.getYear() + 1900, date.getMonth(), date.getDate(), time.getHours(), time.getMinutes(), time.getSeconds());
 
-        return c.getTime();
+    private static int skipLetters(String string, int pos) {
+        while (isLetter(charAt(string, pos))) {
+            pos++;
+        }
+        return pos;
     }
 
 
-    // Mon, 06 Sep 2010 00:01:00 +0000
-    // Sun, 17 Jul 2011 21:56:57 +0200
-    public static Date parseXX(String string) throws ParseException {
-        try {
-            return basicf.parse(string);
+    private static int skipSpace(String string, int pos) {
+        while ((pos < string.length()) && (string.charAt(pos) <= ' ')) {
+            pos++;
         }
-        catch (ParseException e) {
-            string = string.replace("MEST", "+02:00");
-            return fancyf.parse(string);
+        return pos;
+    }
+
+
+    private static int skipSpaceBackwards(String string, int end) {
+        while ((end > 0) && (string.charAt(end - 1) <= ' ')) {
+            end--;
         }
+        return end;
+    }
+
+
+    /**
+     * @return the character at the position or 0 if the string is shorter
+     */
+    private static char charAt(String string, int pos) {
+        return (pos < string.length()) ? string.charAt(pos) : 0;
+    }
+
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+
+    private static boolean isLetter(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
     }
 }
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+
+
+/**
+ * A singleton that enforces the deadlines of all running downloads with one
+ * shared timer thread.
+ * <p>
+ * A download goes through the phases {@link #PHASE_CONNECT},
+ * {@link #PHASE_FIRST_BYTE} and {@link #PHASE_TRANSFER}. Each of the first
+ * two phases has its own deadline and the whole download has a deadline for
+ * the total transfer time. When a deadline expires the connection is
+ * disconnected, which makes the thread doing the download fail with an
+ * IOException. The number of expired deadlines is counted per phase.
+ *
+ * @author mj
+ */
+class DownloadWatchdog {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "DownloadWatchdog";
+
+    /**
+     * Connecting to the server.
+     */
+    public static final int PHASE_CONNECT = 0;
+    /**
+     * Waiting for the server to start answering.
+     */
+    public static final int PHASE_FIRST_BYTE = 1;
+    /**
+     * Receiving the body.
+     */
+    public static final int PHASE_TRANSFER = 2;
+
+    private static final int PHASE_COUNT = 3;
+
+    private static final String[] PHASE_NAMES = {"connect", "first byte", "transfer"};
+
+    /**
+     * Cancelled deadlines stay in the scheduler's queue until they would have
+     * expired. The queue is purged after this many downloads finished.
+     */
+    private static final int PURGE_INTERVAL = 32;
+
+
+    /**
+     * The holder.
+     */
+    private static class DownloadWatchdogHolder {
+
+        public static final DownloadWatchdog HOLDER = new DownloadWatchdog();
+    }
+
+
+    /**
+     * @return a reference to the singleton
+     */
+    public static DownloadWatchdog getInstance() {
+        return DownloadWatchdogHolder.HOLDER;
+    }
+
+
+    /**
+     * The deadlines of one download. Returned by
+     * {@link DownloadWatchdog#watch(HttpURLConnection, int, int, int)}.
+     */
+    public class Deadline {
+
+        private final HttpURLConnection conn;
+        private final int firstByteTimeoutMs;
+        private ScheduledFuture<?> phaseFuture;
+        private final ScheduledFuture<?> totalFuture;
+        private int phase;
+        private boolean expired;
+        private boolean done;
+
+
+        private Deadline(HttpURLConnection conn, int connectTimeoutMs, int firstByteTimeoutMs, int maxTransferTimeMs) {
+            this.conn = conn;
+            this.firstByteTimeoutMs = firstByteTimeoutMs;
+            synchronized (this) {
+                phase = PHASE_CONNECT;
+                phaseFuture = schedule(connectTimeoutMs);
+                totalFuture = schedule(maxTransferTimeMs);
+            }
+        }
+
+
+        /**
+         * Must be called when the connection to the server is established.
+         * Starts the deadline for the first byte of the response.
+         */
+        public synchronized void connected() {
+            if (phase == PHASE_CONNECT) {
+                phaseFuture.cancel(false);
+                phase = PHASE_FIRST_BYTE;
+                phaseFuture = schedule(firstByteTimeoutMs);
+            }
+        }
+
+
+        /**
+         * Must be called when the server started answering. From now on only
+         * the deadline for the total transfer time is active.
+         */
+        public synchronized void responding() {
+            phaseFuture.cancel(false);
+            phase = PHASE_TRANSFER;
+        }
+
+
+        /**
+         * Must be called when the download is finished, successful or not.
+         */
+        public void finish() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                phaseFuture.cancel(false);
+                totalFuture.cancel(false);
+            }
+            downloadFinished();
+        }
+
+
+        /**
+         * @return true, if a deadline expired and the download was aborted
+         */
+        public synchronized boolean hasExpired() {
+            return expired;
+        }
+
+
+        private ScheduledFuture<?> schedule(int timeoutMs) {
+            return scheduler.schedule(new Runnable() {
+
+                public void run() {
+                    expire();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+
+        private void expire() {
+            final int expiredPhase;
+            synchronized (this) {
+                if (done || expired) {
+                    return;
+                }
+                expired = true;
+                expiredPhase = phase;
+            }
+            final int count = expirations[expiredPhase].incrementAndGet();
+            Log.i(TAG, "Aborted download of " + conn.getURL() + " in phase " + PHASE_NAMES[expiredPhase] + " ("
+                            + count + " so far)");
+            conn.disconnect();
+        }
+    }
+
+
+    /**
+     * The one thread that runs all deadlines.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+    /**
+     * Number of expired deadlines per phase.
+     */
+    private final AtomicInteger[] expirations = new AtomicInteger[PHASE_COUNT];
+    /**
+     * Number of downloads finished since the last purge of the scheduler's
+     * queue.
+     */
+    private final AtomicInteger finishedSincePurge = new AtomicInteger();
+
+
+    private DownloadWatchdog() {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            expirations[i] = new AtomicInteger();
+        }
+    }
+
+
+    /**
+     * Starts watching a download. The connect deadline and the deadline for
+     * the total transfer time start running now.
+     *
+     * @param conn
+     *            the connection to disconnect when a deadline expires
+     * @param connectTimeoutMs
+     *            how long connecting may take in milliseconds
+     * @param firstByteTimeoutMs
+     *            how long the server may take to start answering in
+     *            milliseconds
+     * @param maxTransferTimeMs
+     *            how long the whole download may take in milliseconds
+     * @return the deadlines of the download; {@link Deadline#finish()} must be
+     *         called on it when the download is over
+     */
+    public Deadline watch(HttpURLConnection conn, int connectTimeoutMs, int firstByteTimeoutMs, int maxTransferTimeMs) {
+        return new Deadline(conn, connectTimeoutMs, firstByteTimeoutMs, maxTransferTimeMs);
+    }
+
+
+    /**
+     * @param phase
+     *            one of the PHASE_ constants
+     * @return the number of downloads aborted in the given phase since the
+     *         application started
+     */
+    public int getExpirations(int phase) {
+        return expirations[phase].get();
+    }
+
+
+    /**
+     * @return a short description of the expirations for logging
+     */
+    public String getSummary() {
+        final StringBuilder sb = new StringBuilder("expired deadlines:");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append(i == 0 ? " " : ", ").append(PHASE_NAMES[i]).append(' ').append(expirations[i].get());
+        }
+        return sb.toString();
+    }
+
+
+    private void downloadFinished() {
+        if (finishedSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            finishedSincePurge.set(0);
+            scheduler.purge();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import android.content.ContentValues;
+import de.codefu.android.rss.db.FeedProvider;
+
+
+
+/**
+ * Decides when a feed whose downloads keep failing is tried again.
+ * <p>
+ * Every failed poll doubles the time until the next attempt, starting at
+ * {@link #BASE_DELAY_MS} and capped at {@link #MAX_DELAY_MS}. After
+ * {@link #BREAKER_THRESHOLD} failures in a row the feed's circuit breaker
+ * opens. Open feeds are skipped by all polls until the next retry time; then a
+ * single probe is made (half open) that either closes the breaker again or
+ * opens it for a longer time. A successful poll resets everything.
+ * 
+ * @author mj
+ */
+class FeedBackoff {
+
+    /**
+     * The delay after the first failure.
+     */
+    static final long BASE_DELAY_MS = 60 * 1000;
+    /**
+     * The maximum delay between two attempts.
+     */
+    static final long MAX_DELAY_MS = 24 * 60 * 60 * 1000;
+    /**
+     * The number of failures in a row after which the breaker opens.
+     */
+    static final int BREAKER_THRESHOLD = 5;
+
+
+    private FeedBackoff() {
+    }
+
+
+    /**
+     * @param task
+     *            the feed
+     * @param now
+     *            the current time in milliseconds
+     * @return true, if the feed must not be polled now
+     */
+    public static boolean isBackingOff(FetchTask task, long now) {
+        return (task.failures > 0) && (now < task.nextRetryMs);
+    }
+
+
+    /**
+     * @param failures
+     *            the number of failures in a row
+     * @return how long to wait after that many failures before the next
+     *         attempt
+     */
+    public static long getDelayMs(int failures) {
+        if (failures <= 0) {
+            return 0;
+        }
+        final int shift = Math.min(failures - 1, 30);
+        return Math.min(BASE_DELAY_MS << shift, MAX_DELAY_MS);
+    }
+
+
+    /**
+     * @return the values that reset a feed's backoff after a successful poll
+     */
+    public static ContentValues onSuccess() {
+        final ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.FEEDS_COL_FAILURES, 0);
+        cv.put(FeedProvider.FEEDS_COL_NEXTRETRY, 0);
+        cv.put(FeedProvider.FEEDS_COL_BREAKER, FeedProvider.BREAKER_CLOSED);
+        return cv;
+    }
+
+
+    /**
+     * @param task
+     *            the feed whose poll failed
+     * @param now
+     *            the current time in milliseconds
+     * @return the values that record the failure and set the next retry time
+     */
+    public static ContentValues onFailure(FetchTask task, long now) {
+        final int failures = task.failures + 1;
+        final ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.FEEDS_COL_FAILURES, failures);
+        cv.put(FeedProvider.FEEDS_COL_NEXTRETRY, now + getDelayMs(failures));
+        cv.put(FeedProvider.FEEDS_COL_BREAKER, (failures >= BREAKER_THRESHOLD) ? FeedProvider.BREAKER_OPEN
+                        : FeedProvider.BREAKER_CLOSED);
+        return cv;
+    }
+
+
+    /**
+     * @return the values that mark an open breaker as half open while the
+     *         probe runs
+     */
+    public static ContentValues onProbe() {
+        final ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.FEEDS_COL_BREAKER, FeedProvider.BREAKER_HALF_OPEN);
+        return cv;
+    }
+}
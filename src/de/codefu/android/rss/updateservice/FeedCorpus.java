@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+
+
+/**
+ * A directory with recorded feed responses.
+ * <p>
+ * Each response is stored in two files named after a hash of the feed's URL:
+ * <code>.body</code> has the body encoded in UTF-8 and <code>.meta</code> has
+ * the URL, the status and the headers as properties.
+ *
+ * @author mj
+ */
+class FeedCorpus {
+
+    static final String META_URL = "url";
+    static final String META_STATUS = "status";
+    static final String META_ETAG = "etag";
+    static final String META_LAST_MODIFIED = "lastmodified";
+    static final String META_CONTENT_TYPE = "contenttype";
+
+    /**
+     * The content type of recorded bodies.
+     */
+    static final String BODY_CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+    private final File dir;
+
+
+    /**
+     * @param dir
+     *            the directory of the corpus
+     */
+    public FeedCorpus(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * @param url
+     *            the URL of a feed
+     * @return the file with the recorded body of the feed
+     */
+    public File getBodyFile(String url) {
+        return new File(dir, getKey(url) + ".body");
+    }
+
+
+    /**
+     * @param url
+     *            the URL of a feed
+     * @return a file to record the body of the feed into before it is known
+     *         whether the recording is complete
+     */
+    public File getTempFile(String url) {
+        return new File(dir, getKey(url) + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+
+    /**
+     * @param url
+     *            the URL of a feed
+     * @return the recorded status and headers of the feed or null if nothing
+     *         was recorded for the URL
+     */
+    public Properties readMeta(String url) {
+        final File file = getMetaFile(url);
+        if (!file.exists() || !getBodyFile(url).exists()) {
+            return null;
+        }
+        final Properties meta = new Properties();
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                meta.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        return url.equals(meta.getProperty(META_URL)) ? meta : null;
+    }
+
+
+    /**
+     * Stores the status and headers of a feed.
+     * 
+     * @param url
+     *            the URL of the feed
+     * @param meta
+     *            the status and headers
+     * @throws IOException
+     */
+    public void writeMeta(String url, Properties meta) throws IOException {
+        meta.setProperty(META_URL, url);
+        final OutputStream out = new FileOutputStream(getMetaFile(url));
+        try {
+            meta.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    private File getMetaFile(String url) {
+        return new File(dir, getKey(url) + ".meta");
+    }
+
+
+    private static String getKey(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
@@ -19,7 +19,8 @@
 package de.codefu.android.rss.updateservice;
 
 import java.text.ParseException;
-import java.util.Stack;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.xml.sax.Attributes;
@@ -32,44 +33,214 @@ import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
 
 /**
  * SAX parser for RSS feeds.
+ * <p>
+ * The handler is a small state machine: element names are resolved to
+ * integer IDs once per event, the state tells whether the parser is inside an
+ * item and which field is being collected. The text of a field is collected
+ * in a reusable buffer and turned into a String once, when the field ends.
+ * Elements inside a field (e.g. HTML in a description) are kept as tags in
+ * the text.
+ * <p>
+ * The channel's update hints (ttl, skipHours, skipDays and the syndication
+ * module's updatePeriod and updateFrequency) are collected in an
+ * {@link UpdateHints} that is reported with the feed's data.
+ * <p>
+ * Each field has a size budget, so the buffer does not grow with what a feed
+ * puts into an item. Text beyond the budget is dropped; the field is cut
+ * before an incomplete tag or entity and ends with {@link #TRUNCATION_MARKER}.
+ * <p>
+ * The handler is driven by a {@link FeedParser}. A client that has seen
+ * enough can call {@link #stop()}; the engine then stops reading the data.
+ * <p>
+ * With {@link #setEarlyStop(KnownItems, int)} items that are already stored
+ * are not reported. Since most feeds list the newest items first, the handler
+ * stops itself after a run of known items in a row.
  * 
  * @author mj
  */
 class FeedHandler extends DefaultHandler {
 
-    private static final String E_ENTRY = "entry";
+    private static final int E_OTHER = 0;
 
-    private static final String E_PUB_DATE = "pubDate";
+    private static final int E_ENTRY = 1;
 
-    private static final String E_GUID = "guid";
+    private static final int E_PUB_DATE = 2;
 
-    private static final String E_ITEM = "item";
+    private static final int E_GUID = 3;
 
-    private static final String E_DESCRIPTION = "description";
+    private static final int E_ITEM = 4;
 
-    private static final String E_LINK = "link";
+    private static final int E_DESCRIPTION = 5;
 
-    private static final String E_TITLE = "title";
+    private static final int E_LINK = 6;
 
-    private static final String E_SUBTITLE = "subtitle";
+    private static final int E_TITLE = 7;
 
-    private static final String E_ID = "id";
+    private static final int E_SUBTITLE = 8;
 
-    private Stack<String> elements;
+    private static final int E_ID = 9;
+
+    private static final int E_PUBLISHED = 10;
+
+    private static final int E_DATE = 11;
+
+    private static final int E_TTL = 12;
+
+    private static final int E_UPDATE_PERIOD = 13;
+
+    private static final int E_UPDATE_FREQUENCY = 14;
+
+    private static final int E_SKIP_HOURS = 15;
+
+    private static final int E_HOUR = 16;
+
+    private static final int E_SKIP_DAYS = 17;
+
+    private static final int E_DAY = 18;
+
+    /**
+     * Maps the local names of the elements the handler cares about to their
+     * IDs. The values are the cached small Integer instances, so a lookup
+     * does not allocate.
+     */
+    private static final Map<String, Integer> ELEMENT_IDS = new HashMap<String, Integer>();
+
+    static {
+        ELEMENT_IDS.put("entry", E_ENTRY);
+        ELEMENT_IDS.put("pubDate", E_PUB_DATE);
+        ELEMENT_IDS.put("guid", E_GUID);
+        ELEMENT_IDS.put("item", E_ITEM);
+        ELEMENT_IDS.put("description", E_DESCRIPTION);
+        ELEMENT_IDS.put("link", E_LINK);
+        ELEMENT_IDS.put("title", E_TITLE);
+        ELEMENT_IDS.put("subtitle", E_SUBTITLE);
+        ELEMENT_IDS.put("id", E_ID);
+        ELEMENT_IDS.put("published", E_PUBLISHED);
+        ELEMENT_IDS.put("date", E_DATE);
+        ELEMENT_IDS.put("ttl", E_TTL);
+        ELEMENT_IDS.put("updatePeriod", E_UPDATE_PERIOD);
+        ELEMENT_IDS.put("updateFrequency", E_UPDATE_FREQUENCY);
+        ELEMENT_IDS.put("skipHours", E_SKIP_HOURS);
+        ELEMENT_IDS.put("hour", E_HOUR);
+        ELEMENT_IDS.put("skipDays", E_SKIP_DAYS);
+        ELEMENT_IDS.put("day", E_DAY);
+    }
+
+    /**
+     * Outside of an item.
+     */
+    private static final int S_CHANNEL = 0;
+    /**
+     * Inside an item.
+     */
+    private static final int S_ITEM = 1;
+    /**
+     * Inside the channel's skipHours.
+     */
+    private static final int S_SKIP_HOURS = 2;
+    /**
+     * Inside the channel's skipDays.
+     */
+    private static final int S_SKIP_DAYS = 3;
+
+    private static final int F_NONE = 0;
+
+    private static final int F_CHANNEL_TITLE = 1;
+
+    private static final int F_CHANNEL_LINK = 2;
+
+    private static final int F_CHANNEL_DESCRIPTION = 3;
+
+    private static final int F_HEADLINE = 4;
+
+    private static final int F_LINK = 5;
+
+    private static final int F_CONTENT = 6;
+
+    private static final int F_GUID = 7;
+
+    private static final int F_DATE = 8;
+
+    private static final int F_TTL = 9;
+
+    private static final int F_UPDATE_PERIOD = 10;
+
+    private static final int F_UPDATE_FREQUENCY = 11;
+
+    private static final int F_SKIP_HOUR = 12;
+
+    private static final int F_SKIP_DAY = 13;
+
+    private static final int INITIAL_TEXT_SIZE = 1024;
+
+    /**
+     * The maximum number of characters kept of an item's content or a
+     * channel's description.
+     */
+    static final int MAX_BODY_CHARS = 128 * 1024;
+
+    /**
+     * The maximum number of characters kept of the other fields.
+     */
+    static final int MAX_SHORT_CHARS = 8 * 1024;
+
+    /**
+     * An ampersand further back than this does not start the entity the text
+     * was cut in.
+     */
+    private static final int MAX_ENTITY_LENGTH = 12;
+
+    /**
+     * Appended to a field that was cut off.
+     */
+    static final String TRUNCATION_MARKER = " [\u2026]";
+
+    private int state;
+    /**
+     * The ID of the element that started the current item.
+     */
+    private int itemElement;
+    /**
+     * The field that is being collected or {@link #F_NONE}.
+     */
+    private int field;
+    /**
+     * The ID of the element whose end tag ends the current field.
+     */
+    private int fieldElement;
+
+    private char[] text;
+    private int textLength;
+    /**
+     * The size budget of the current field.
+     */
+    private int textLimit;
+    /**
+     * Whether text of the current field was dropped.
+     */
+    private boolean textTruncated;
 
     private String channelTitle;
     private String channelLink;
     private String channelDescription;
+    private final UpdateHints hints = new UpdateHints();
 
     private Item item;
 
     private FeedHandlerClient fhc;
 
-    private String collectAllUntilEndTag;
-    private StringBuilder collector;
-
     private boolean errorOccurred;
 
+    private volatile boolean stopped;
+
+    private KnownItems knownItems;
+    /**
+     * The number of known items in a row after which the handler stops.
+     */
+    private int maxKnownRun;
+    private int knownRun;
+    private int skippedItems;
+
     private long feedId;
     private int cleanHtml;
 
@@ -80,7 +251,9 @@ class FeedHandler extends DefaultHandler {
         this.feedId = feedId;
         this.cleanHtml = cleanHtml;
         this.fhc = fhc;
-        this.elements = new Stack<String>();
+        this.state = S_CHANNEL;
+        this.field = F_NONE;
+        this.text = new char[INITIAL_TEXT_SIZE];
         this.errorOccurred = false;
         this.timezone = tz;
     }
@@ -96,206 +269,380 @@ class FeedHandler extends DefaultHandler {
     }
 
 
+    /**
+     * Makes the handler skip items that are already stored and stop after
+     * the given number of them in a row.
+     * 
+     * @param knownItems
+     *            the items stored for the feed
+     * @param maxKnownRun
+     *            the number of known items in a row after which the rest of
+     *            the data is not read
+     */
+    public void setEarlyStop(KnownItems knownItems, int maxKnownRun) {
+        this.knownItems = knownItems;
+        this.maxKnownRun = maxKnownRun;
+    }
+
+
+    /**
+     * @return the number of known items that were not reported
+     */
+    public int getSkippedItems() {
+        return skippedItems;
+    }
+
+
+    /**
+     * Makes the engine stop reading the data. Items that are complete were
+     * already reported; the feed's data is reported as usual.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+
+    /**
+     * @return true, if {@link #stop()} was called
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-        if (isCollectorConsuming(localName)) {
-            collector.append('<').append(localName).append('>');
+        if (stopped) {
+            // The only way to make a SAX parser stop.
+            throw new SAXException("stopped");
         }
-        else if ((elements.size() == 0)) {
-            if (E_TITLE.equals(localName) && (channelTitle == null)) {
-                elements.push(E_TITLE);
-                startCollecting(E_TITLE);
+        final int element = resolve(localName);
+        if (field != F_NONE) {
+            if (element != fieldElement) {
+                appendText('<');
+                appendText(localName);
+                appendText('>');
             }
-            else if (E_LINK.equals(localName) && (channelLink == null)) {
-                final String href = attributes.getValue("href");
-                final String rel = attributes.getValue("rel");
-                if ((channelLink == null) && (href != null) && (!"self".equals(rel))) {
-                    channelLink = href;
+        }
+        else if (state == S_CHANNEL) {
+            startChannelElement(element, attributes);
+        }
+        else if (state == S_ITEM) {
+            startItemElement(element, attributes);
+        }
+        else if ((state == S_SKIP_HOURS) && (element == E_HOUR)) {
+            startField(F_SKIP_HOUR, element);
+        }
+        else if ((state == S_SKIP_DAYS) && (element == E_DAY)) {
+            startField(F_SKIP_DAY, element);
+        }
+    }
+
+
+    private void startChannelElement(int element, Attributes attributes) {
+        switch (element) {
+            case E_TITLE:
+                if (channelTitle == null) {
+                    startField(F_CHANNEL_TITLE, element);
                 }
-                else {
-                    elements.push(E_LINK);
-                    startCollecting(E_LINK);
+                break;
+            case E_LINK:
+                if (channelLink == null) {
+                    final String href = attributes.getValue("href");
+                    if ((href != null) && (!"self".equals(attributes.getValue("rel")))) {
+                        channelLink = href;
+                    }
+                    else {
+                        startField(F_CHANNEL_LINK, element);
+                    }
                 }
-            }
-            else if ((E_DESCRIPTION.equals(localName) || E_SUBTITLE.equals(localName)) && (channelDescription == null)) {
-                elements.push(localName);
-                startCollecting(localName);
-            }
-            else if (E_ITEM.equals(localName) || E_ENTRY.equals(localName)) {
-                elements.push(localName);
+                break;
+            case E_DESCRIPTION:
+            case E_SUBTITLE:
+                if (channelDescription == null) {
+                    startField(F_CHANNEL_DESCRIPTION, element);
+                }
+                break;
+            case E_ITEM:
+            case E_ENTRY:
+                state = S_ITEM;
+                itemElement = element;
                 item = new Item();
                 final String about = attributes.getValue("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "about");
                 if (about != null) {
                     item.guid = about;
                 }
-            }
+                break;
+            case E_TTL:
+                startField(F_TTL, element);
+                break;
+            case E_UPDATE_PERIOD:
+                startField(F_UPDATE_PERIOD, element);
+                break;
+            case E_UPDATE_FREQUENCY:
+                startField(F_UPDATE_FREQUENCY, element);
+                break;
+            case E_SKIP_HOURS:
+                state = S_SKIP_HOURS;
+                break;
+            case E_SKIP_DAYS:
+                state = S_SKIP_DAYS;
+                break;
         }
-        else if ((elements.size() == 1) && (E_ITEM.equals(elements.peek()) || E_ENTRY.equals(elements.peek()))) {
-            if (E_TITLE.equals(localName)) {
-                elements.push(E_TITLE);
-                startCollecting(E_TITLE);
-            }
-            else if (E_LINK.equals(localName)) {
+    }
+
+
+    private void startItemElement(int element, Attributes attributes) {
+        switch (element) {
+            case E_TITLE:
+                startField(F_HEADLINE, element);
+                break;
+            case E_LINK:
                 final String href = attributes.getValue("href");
-                final String rel = attributes.getValue("rel");
-                if ((item.link == null) && (href != null) && (!"self".equals(rel))) {
+                if ((item.link == null) && (href != null) && (!"self".equals(attributes.getValue("rel")))) {
                     item.link = href;
                 }
                 else {
-                    elements.push(E_LINK);
-                    startCollecting(E_LINK);
+                    startField(F_LINK, element);
                 }
-            }
-            else if (E_DESCRIPTION.equals(localName)) {
-                elements.push(E_DESCRIPTION);
-                startCollecting(E_DESCRIPTION);
-            }
-            else if (E_GUID.equals(localName) || E_ID.equals(localName)) {
-                elements.push(localName);
-                startCollecting(localName);
-            }
-            else if (E_PUB_DATE.equals(localName) || "published".equals(localName) || "date".equals(localName)) {
-                elements.push(localName);
-                startCollecting(localName);
-            }
+                break;
+            case E_DESCRIPTION:
+                startField(F_CONTENT, element);
+                break;
+            case E_GUID:
+            case E_ID:
+                startField(F_GUID, element);
+                break;
+            case E_PUB_DATE:
+            case E_PUBLISHED:
+            case E_DATE:
+                startField(F_DATE, element);
+                break;
         }
     }
 
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
-        if (collector != null) {
-            collector.append(new String(ch, start, length));
+        if (field != F_NONE) {
+            final int n = reserveText(length);
+            System.arraycopy(ch, start, text, textLength, n);
+            textLength += n;
         }
-        else if (elements.size() == 1) {
-            if (E_TITLE.equals(elements.peek()) && (channelTitle == null)) {
-                channelTitle = new String(ch, start, length).trim();
-            }
-            else if (E_DESCRIPTION.equals(elements.peek()) && (channelDescription == null)) {
-                channelDescription = new String(ch, start, length).trim();
+    }
+
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        final int element = resolve(localName);
+        if (field != F_NONE) {
+            if (element != fieldElement) {
+                appendText('<');
+                appendText('/');
+                appendText(localName);
+                appendText('>');
             }
-            else if (E_LINK.equals(elements.peek()) && (channelLink == null)) {
-                channelLink = new String(ch, start, length).trim();
+            else {
+                endField();
             }
         }
-        else if (elements.size() == 2) {
-            if (E_TITLE.equals(elements.peek())) {
-                if (item != null) {
-                    item.headline = new String(ch, start, length).trim();
+        else if ((state == S_ITEM) && (element == itemElement)) {
+            state = S_CHANNEL;
+            if ((knownItems != null) && knownItems.contains(item)) {
+                skippedItems++;
+                if (++knownRun >= maxKnownRun) {
+                    stop();
                 }
             }
-            else if (E_DESCRIPTION.equals(elements.peek())) {
-                if (item != null) {
-                    item.content = new String(ch, start, length).trim();
-                }
-            }
-            else if (E_GUID.equals(elements.peek()) || E_ID.equals(elements.peek())) {
-                if (item != null) {
-                    item.guid = new String(ch, start, length).trim();
-                }
-            }
-            else if (E_LINK.equals(elements.peek())) {
-                if (item != null) {
-                    item.link = new String(ch, start, length).trim();
-                }
-            }
-            else if (E_PUB_DATE.equals(elements.peek())) {
-                if (item != null) {
-                    try {
-                        item.date = DateFormat3339.parse(new String(ch, start, length), timezone);
-                    }
-                    catch (ParseException e) {
-                    }
-                }
+            else {
+                knownRun = 0;
+                fhc.addItem(feedId, cleanHtml, item);
             }
+            item = null;
+        }
+        else if (((state == S_SKIP_HOURS) && (element == E_SKIP_HOURS))
+                        || ((state == S_SKIP_DAYS) && (element == E_SKIP_DAYS))) {
+            state = S_CHANNEL;
         }
     }
 
 
     @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (isCollectorConsuming(localName)) {
-            collector.append("</").append(localName).append('>');
+    public void endDocument() throws SAXException {
+        // Hints after the point where the data was stopped are missing.
+        fhc.updateFeed(feedId, channelTitle, channelDescription, channelLink, stopped ? null : hints);
+    }
+
+
+    /**
+     * Called by the engine instead of {@link #endDocument()} if the data is
+     * not well-formed. Reports the channel's data found up to the error, if
+     * any. The update hints are left out because some of them may come after
+     * the error.
+     */
+    public void endIncompleteDocument() {
+        if ((channelTitle != null) || (channelDescription != null) || (channelLink != null)) {
+            fhc.updateFeed(feedId, channelTitle, channelDescription, channelLink, null);
         }
-        else {
-            if ((elements.size() != 0) && elements.peek().equals(localName)) {
-                elements.pop();
-                if ((elements.size() == 0)) {
-                    if (E_TITLE.equals(localName)) {
-                        channelTitle = endCollecting();
-                    }
-                    else if (E_LINK.equals(localName)) {
-                        channelLink = endCollecting();
-                    }
-                    else if (E_DESCRIPTION.equals(localName) || E_SUBTITLE.equals(localName)) {
-                        channelDescription = endCollecting();
-                    }
-                    else if (E_ITEM.equals(localName) || E_ENTRY.equals(localName)) {
-                        fhc.addItem(feedId, cleanHtml, item);
-                        item = null;
-                    }
+    }
+
+
+    private static int resolve(String localName) {
+        final Integer id = ELEMENT_IDS.get(localName);
+        return (id != null) ? id : E_OTHER;
+    }
+
+
+    private void startField(int field, int element) {
+        this.field = field;
+        this.fieldElement = element;
+        this.textLength = 0;
+        this.textLimit = ((field == F_CONTENT) || (field == F_CHANNEL_DESCRIPTION)) ? MAX_BODY_CHARS
+                        : MAX_SHORT_CHARS;
+        this.textTruncated = false;
+    }
+
+
+    /**
+     * Ends the current field and stores its text where it belongs.
+     */
+    private void endField() {
+        final String value = takeText();
+        switch (field) {
+            case F_CHANNEL_TITLE:
+                channelTitle = value;
+                break;
+            case F_CHANNEL_LINK:
+                channelLink = value;
+                break;
+            case F_CHANNEL_DESCRIPTION:
+                channelDescription = value;
+                break;
+            case F_HEADLINE:
+                item.headline = value;
+                break;
+            case F_LINK:
+                item.link = value;
+                break;
+            case F_CONTENT:
+                item.content = value;
+                break;
+            case F_GUID:
+                item.guid = value;
+                break;
+            case F_DATE:
+                try {
+                    item.date = DateFormat3339.parse(value, timezone);
                 }
-                else if ((elements.size() == 1) && (E_ITEM.equals(elements.peek())) || E_ENTRY.equals(elements.peek())) {
-                    if (E_TITLE.equals(localName)) {
-                        if (item != null) {
-                            item.headline = endCollecting();
-                        }
-                    }
-                    else if (E_LINK.equals(localName)) {
-                        if (item != null) {
-                            item.link = endCollecting();
-                        }
-                    }
-                    else if (E_DESCRIPTION.equals(localName)) {
-                        if (item != null) {
-                            item.content = endCollecting();
-                        }
-                    }
-                    else if (E_GUID.equals(localName) || E_ID.equals(localName)) {
-                        if (item != null) {
-                            item.guid = endCollecting();
-                        }
-                    }
-                    else if (E_PUB_DATE.equals(localName) || "published".equals(localName) || "date".equals(localName)) {
-                        if (item != null) {
-                            try {
-                                item.date = DateFormat3339.parse(endCollecting(), timezone);
-                            }
-                            catch (ParseException e) {
-                            }
-                        }
-                    }
+                catch (ParseException e) {
                 }
-            }
+                break;
+            case F_TTL:
+                hints.setTtl(value);
+                break;
+            case F_UPDATE_PERIOD:
+                hints.setUpdatePeriod(value);
+                break;
+            case F_UPDATE_FREQUENCY:
+                hints.setUpdateFrequency(value);
+                break;
+            case F_SKIP_HOUR:
+                hints.addSkipHour(value);
+                break;
+            case F_SKIP_DAY:
+                hints.addSkipDay(value);
+                break;
         }
+        field = F_NONE;
     }
 
 
-    @Override
-    public void endDocument() throws SAXException {
-        fhc.updateFeed(feedId, channelTitle, channelDescription, channelLink);
+    /**
+     * @return the collected text without leading and trailing white space;
+     *         with the truncation marker if text was dropped
+     */
+    private String takeText() {
+        int start = 0;
+        int end = textTruncated ? findSafeEnd() : textLength;
+        while ((start < end) && (text[start] <= ' ')) {
+            start++;
+        }
+        while ((end > start) && (text[end - 1] <= ' ')) {
+            end--;
+        }
+        textLength = 0;
+        final String value = (start == end) ? "" : new String(text, start, end - start);
+        return textTruncated ? value + TRUNCATION_MARKER : value;
+    }
+
+
+    /**
+     * Finds where a cut off text can end without leaving an incomplete tag,
+     * entity or surrogate pair behind.
+     * 
+     * @return the length of the text to keep
+     */
+    private int findSafeEnd() {
+        int end = textLength;
+        int i = end;
+        while ((i > 0) && (text[i - 1] != '<') && (text[i - 1] != '>')) {
+            i--;
+        }
+        if ((i > 0) && (text[i - 1] == '<')) {
+            end = i - 1;
+        }
+        else {
+            for (i = end - 1; (i >= 0) && (i >= end - MAX_ENTITY_LENGTH); i--) {
+                if ((text[i] == ';') || (text[i] <= ' ')) {
+                    break;
+                }
+                if (text[i] == '&') {
+                    end = i;
+                    break;
+                }
+            }
+        }
+        if ((end > 0) && Character.isHighSurrogate(text[end - 1])) {
+            end--;
+        }
+        return end;
     }
 
 
-    private void startCollecting(String tag) {
-        collectAllUntilEndTag = tag;
-        collector = new StringBuilder();
+    private void appendText(char c) {
+        if (reserveText(1) == 1) {
+            text[textLength++] = c;
+        }
     }
 
 
-    private boolean isCollectorConsuming(String tag) {
-        return (collectAllUntilEndTag != null) && (!collectAllUntilEndTag.equals(tag));
+    private void appendText(String s) {
+        final int n = reserveText(s.length());
+        s.getChars(0, n, text, textLength);
+        textLength += n;
     }
 
 
-    private String endCollecting() {
-        if (collectAllUntilEndTag != null) {
-            final String out = collector.toString().trim();
-            collectAllUntilEndTag = null;
-            collector = null;
-            return out;
+    /**
+     * Makes room for more text of the current field within its budget.
+     * 
+     * @param length
+     *            the number of characters to append
+     * @return the number of characters that may be appended
+     */
+    private int reserveText(int length) {
+        final int free = textLimit - textLength;
+        if (length > free) {
+            textTruncated = true;
+            length = Math.max(0, free);
+        }
+        final int needed = textLength + length;
+        if (needed > text.length) {
+            final char[] larger = new char[Math.min(Math.max(needed, 2 * text.length), MAX_BODY_CHARS)];
+            System.arraycopy(text, 0, larger, 0, textLength);
+            text = larger;
         }
-        return null;
+        return length;
     }
 
 
@@ -70,6 +70,9 @@ interface FeedHandlerClient {
      *            the new description
      * @param url
      *            the new URL
+     * @param hints
+     *            how often the feed wants to be polled; null if the data was
+     *            not read completely and the hints may be incomplete
      */
-    void updateFeed(long feedId, String name, String description, String url);
+    void updateFeed(long feedId, String name, String description, String url, UpdateHints hints);
 }
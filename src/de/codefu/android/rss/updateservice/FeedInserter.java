@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import de.codefu.android.rss.db.FeedProvider;
+import de.codefu.android.rss.db.ItemProvider;
+
+
+
+/**
+ * Processes feed data through a {@link FeedParser} into individual news items
+ * and inserts these into the database.
+ * <p>
+ * Used by the {@link InsertService} for data that was downloaded completely
+ * and by the {@link UpdateService} to parse the data while it is downloaded.
+ * <p>
+ * The items are buffered and written to the temporary items table in batches,
+ * each in one transaction. Only
+ * {@link #commit(long, String, String, String)} moves them to the final table
+ * and updates the feed, {@link #discard(long)} throws them away.
+ * <p>
+ * The time spent in each step and the number of items are recorded in the
+ * {@link FetchStats} of the poll.
+ *
+ * @author mj
+ */
+class FeedInserter implements FeedHandlerClient {
+
+    /**
+     * Returned by {@link #getCleanHtml(long)} if the feed does not exist.
+     */
+    static final int VALUE_UNSET = -1;
+
+    private final ContentResolver resolver;
+    private final FetchStats stats;
+    private final FeedParser parser;
+    /**
+     * The number of known items in a row after which parsing stops or 0.
+     */
+    private int earlyStopRun;
+    /**
+     * The items that are not written yet. All items of a feed are written in
+     * one transaction. Holding them until then is fine because the data of a
+     * feed is limited by its maximum size and the items' texts by the field
+     * budgets of the {@link FeedHandler}.
+     */
+    private final List<ContentValues> pending = new ArrayList<ContentValues>();
+    /**
+     * True, if items were written to the temporary items table.
+     */
+    private boolean flushed;
+
+
+    /**
+     * Creates an inserter that parses with the SAX engine.
+     *
+     * @param resolver
+     *            the resolver to store the items with
+     * @param stats
+     *            the statistics of the poll the data comes from
+     */
+    public FeedInserter(ContentResolver resolver, FetchStats stats) {
+        this(resolver, stats, FeedParser.SAX);
+    }
+
+
+    /**
+     * @param resolver
+     *            the resolver to store the items with
+     * @param stats
+     *            the statistics of the poll the data comes from
+     * @param parser
+     *            the engine that parses the data
+     */
+    public FeedInserter(ContentResolver resolver, FetchStats stats, FeedParser parser) {
+        this.resolver = resolver;
+        this.stats = stats;
+        this.parser = parser;
+    }
+
+
+    /**
+     * @param engine
+     *            one of the PARSER_ constants in {@link FeedProvider}
+     * @return the parser engine; the SAX engine if the constant is unknown
+     */
+    static FeedParser getParser(int engine) {
+        return (engine == FeedProvider.PARSER_PULL) ? FeedParser.PULL : FeedParser.SAX;
+    }
+
+
+    /**
+     * Makes {@link #parse(long, Reader)} skip the items that are already
+     * stored for the feed and stop after a run of them.
+     * 
+     * @param earlyStopRun
+     *            the number of known items in a row after which the rest of
+     *            the data is not read; 0 to read all data
+     */
+    public void setEarlyStopRun(int earlyStopRun) {
+        this.earlyStopRun = earlyStopRun;
+    }
+
+
+    /**
+     * Parses the feed data, stores the items found in it and updates the
+     * feed's last poll date, validators and fingerprint.
+     * <p>
+     * If reading the data fails, nothing is stored and the feed is not
+     * touched so that the next poll downloads all data again.
+     *
+     * @param feedId
+     *            the ID of the feed the data belongs to
+     * @param xml
+     *            the feed data
+     * @param etag
+     *            the ETag the server sent with the data
+     * @param lastModified
+     *            the Last-Modified header the server sent with the data
+     * @param bodyHash
+     *            the fingerprint of the data
+     * @return false, if the feed does not exist (anymore), else true
+     * @throws IOException
+     *             if reading the data failed
+     */
+    public boolean ingest(long feedId, Reader xml, String etag, String lastModified, String bodyHash)
+                    throws IOException {
+        try {
+            if (!parse(feedId, xml)) {
+                return false;
+            }
+        }
+        catch (IOException e) {
+            discard(feedId);
+            throw e;
+        }
+        commit(feedId, etag, lastModified, bodyHash);
+        return true;
+    }
+
+
+    /**
+     * Parses the feed data and collects the items found in it. Nothing is
+     * written until {@link #commit(long, String, String, String)}, so data
+     * that turns out to be unchanged once it is read completely costs no
+     * database writes.
+     *
+     * @param feedId
+     *            the ID of the feed the data belongs to
+     * @param xml
+     *            the feed data
+     * @return false, if the feed does not exist (anymore), else true
+     * @throws IOException
+     *             if reading the data failed
+     */
+    public boolean parse(long feedId, Reader xml) throws IOException {
+        final int cleanHtml = getCleanHtml(feedId);
+        if (cleanHtml == VALUE_UNSET) {
+            return false;
+        }
+
+        final TimeZone tz = TimeZone.getDefault();
+        final long startMs = SystemClock.uptimeMillis();
+        final FeedHandler handler = new FeedHandler(feedId, cleanHtml, this, tz);
+        try {
+            if (earlyStopRun > 0) {
+                handler.setEarlyStop(KnownItems.load(resolver, feedId), earlyStopRun);
+            }
+            if (!parser.parse(xml, handler)) {
+                stats.malformed = true;
+            }
+        }
+        finally {
+            stats.parseMs += SystemClock.uptimeMillis() - startMs;
+            stats.itemsSkipped += handler.getSkippedItems();
+        }
+        return true;
+    }
+
+
+    /**
+     * Moves the collected items to the final table and updates the feed's
+     * last poll date, validators and fingerprint.
+     *
+     * @param feedId
+     *            the ID of the feed
+     * @param etag
+     *            the ETag the server sent with the data
+     * @param lastModified
+     *            the Last-Modified header the server sent with the data
+     * @param bodyHash
+     *            the fingerprint of the data
+     */
+    public void commit(long feedId, String etag, String lastModified, String bodyHash) {
+        flush(feedId);
+        moveItems(feedId);
+        touchFeed(feedId, etag, lastModified, bodyHash);
+        stats.ingested = true;
+    }
+
+
+    /**
+     * Throws away the collected items.
+     *
+     * @param feedId
+     *            the ID of the feed
+     */
+    public void discard(long feedId) {
+        pending.clear();
+        if (!flushed) {
+            return;
+        }
+        Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
+        uri = uri.buildUpon().encodedFragment(ItemProvider.TMP).build();
+        resolver.delete(uri, null, null);
+        flushed = false;
+    }
+
+
+    /**
+     * @param feedId
+     *            the ID of a feed
+     * @return how the HTML in the feed's items is cleaned or
+     *         {@link #VALUE_UNSET} if the feed does not exist
+     */
+    int getCleanHtml(final long feedId) {
+        final Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
+        final Cursor c = resolver.query(uri, null, null, null, null);
+        int cleanHtml = VALUE_UNSET;
+        if (c != null) {
+            if (c.moveToFirst()) {
+                cleanHtml = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_CLEANHTML));
+            }
+            c.close();
+        }
+        return cleanHtml;
+    }
+
+
+    private void moveItems(final long feedId) {
+        Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
+        uri = uri.buildUpon().encodedFragment("move").build();
+        final long startMs = SystemClock.uptimeMillis();
+        final Uri moved = resolver.insert(uri, null);
+        stats.moveMs += SystemClock.uptimeMillis() - startMs;
+        if (moved != null) {
+            stats.itemsNew += (int) ContentUris.parseId(moved);
+        }
+    }
+
+
+    public void addItem(long feedId, int cleanHtml, Item item) {
+        clean(cleanHtml, item);
+        stats.itemsSeen++;
+        pending.add(asContentValues(item));
+    }
+
+
+    /**
+     * Stores items that were already cleaned in the temporary items table.
+     * The items are not counted as seen because whoever parsed them did that
+     * already.
+     *
+     * @param feedId
+     *            the ID of the feed the items belong to
+     * @param items
+     *            the items
+     */
+    public void addItems(long feedId, List<Item> items) {
+        for (Item item : items) {
+            pending.add(asContentValues(item));
+        }
+        flush(feedId);
+    }
+
+
+    /**
+     * Removes the HTML from the item's texts if the feed asks for it.
+     *
+     * @param cleanHtml
+     *            how the HTML in the feed's items is cleaned
+     * @param item
+     *            the item
+     */
+    static void clean(int cleanHtml, Item item) {
+        if (cleanHtml == FeedProvider.CLEAN_STRIP_HTML) {
+            item.content = Utils.htmlClean(item.content);
+            item.headline = Utils.htmlClean(item.headline);
+        }
+    }
+
+
+    /**
+     * Writes the buffered items to the temporary items table in one
+     * transaction.
+     * 
+     * @param feedId
+     *            the ID of the feed the items belong to
+     */
+    private void flush(long feedId) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
+        final long startMs = SystemClock.uptimeMillis();
+        flushed = true;
+        resolver.bulkInsert(uri, pending.toArray(new ContentValues[pending.size()]));
+        stats.insertMs += SystemClock.uptimeMillis() - startMs;
+        pending.clear();
+    }
+
+
+    public ContentValues asContentValues(Item item) {
+        ContentValues cv = new ContentValues();
+        if (item.headline != null) {
+            cv.put(ItemProvider.ITEMS_COL_HEADLINE, item.headline);
+        }
+        if (item.content != null) {
+            cv.put(ItemProvider.ITEMS_COL_CONTENT, item.content);
+        }
+        if (item.date != null) {
+            cv.put(ItemProvider.ITEMS_COL_DATE, item.date.getTime());
+        }
+        if (item.link != null) {
+            cv.put(ItemProvider.ITEMS_COL_LINK, item.link.toString());
+        }
+        if (item.guid != null) {
+            cv.put(ItemProvider.ITEMS_COL_GUID, item.guid.toString());
+        }
+        return cv;
+    }
+
+
+    public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+        ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.FEEDS_COL_NAME, name);
+        cv.put(FeedProvider.FEEDS_COL_DESCRIPTION, description);
+        cv.put(FeedProvider.FEEDS_COL_SITEURL, url);
+        if (hints != null) {
+            cv.put(FeedProvider.FEEDS_COL_HINTMIN, hints.getMinIntervalMin());
+            cv.put(FeedProvider.FEEDS_COL_SKIPHOURS, hints.getSkipHours());
+            cv.put(FeedProvider.FEEDS_COL_SKIPDAYS, hints.getSkipDays());
+        }
+        Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
+        resolver.update(uri, cv, null, null);
+    }
+
+
+    /**
+     * Sets the last poll date of the feed and remembers the validators that
+     * came with the data so that the next poll can be a conditional one. The
+     * fingerprint is remembered so that the next poll can recognize unchanged
+     * data.
+     */
+    private void touchFeed(long feedId, String etag, String lastModified, String bodyHash) {
+        ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.FEEDS_COL_LASTPOLLDATE, System.currentTimeMillis());
+        cv.put(FeedProvider.FEEDS_COL_ETAG, etag);
+        cv.put(FeedProvider.FEEDS_COL_LASTMODIFIED, lastModified);
+        cv.put(FeedProvider.FEEDS_COL_BODYHASH, bodyHash);
+        Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
+        resolver.update(uri, cv, null, null);
+    }
+}
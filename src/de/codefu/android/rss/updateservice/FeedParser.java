@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.Reader;
+
+
+
+/**
+ * An engine that reads feed data and reports it to a {@link FeedHandler}.
+ * <p>
+ * All engines deliver the same events to the handler, so they produce the
+ * same items. If the data is not well-formed XML, e.g. because it was cut
+ * off, the items found up to the error are reported, the engine calls
+ * {@link FeedHandler#endIncompleteDocument()} instead of
+ * {@link FeedHandler#endDocument()} and the error is logged and returned.
+ * After {@link FeedHandler#stop()} the engine stops reading and calls
+ * {@link FeedHandler#endDocument()}.
+ * <p>
+ * The engines are stateless and can be used by several threads at the same
+ * time.
+ *
+ * @author mj
+ */
+interface FeedParser {
+
+    /**
+     * The engine that uses a SAX parser.
+     */
+    FeedParser SAX = new SaxFeedParser();
+
+    /**
+     * The engine that uses an XmlPull parser.
+     */
+    FeedParser PULL = new PullFeedParser();
+
+
+    /**
+     * Reads the feed data and reports it to the handler.
+     *
+     * @param xml
+     *            the feed data
+     * @param handler
+     *            the handler that gets the events
+     * @return true, if the data was read completely or until the handler was
+     *         stopped; false, if it was not well-formed or no parser could be
+     *         created
+     * @throws IOException
+     *             if reading the data failed
+     */
+    boolean parse(Reader xml, FeedHandler handler) throws IOException;
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.Reader;
+
+
+
+/**
+ * Gets the data of a feed from somewhere.
+ * <p>
+ * The {@link UrlHttpRetriever} downloads it from the feed's server. The
+ * {@link FixtureRetriever} replays data recorded earlier by the
+ * {@link RecordingRetriever} so that refreshes can be measured without real
+ * servers.
+ * 
+ * @author mj
+ */
+interface FeedRetriever {
+
+    /**
+     * Gets the body of a response while it is downloaded.
+     */
+    interface BodyConsumer {
+
+        /**
+         * Reads the body of a response.
+         * 
+         * @param result
+         *            the result of the download so far, i.e. with status and
+         *            headers
+         * @param body
+         *            the decoded body of the response
+         * @throws IOException
+         *             if reading the body fails
+         */
+        void consume(FetchResult result, Reader body) throws IOException;
+    }
+
+
+    /**
+     * A consumer that stores the complete body in the result.
+     */
+    BodyConsumer BUFFERING = new BodyConsumer() {
+
+        public void consume(FetchResult result, Reader body) throws IOException {
+            result.body = Utils.readStream(body);
+        }
+    };
+
+
+    /**
+     * Gets the data of a feed and hands the body to the consumer while it is
+     * read.
+     * <p>
+     * The body is cut off after the task's maximum number of bytes; the result
+     * is marked as truncated then. Otherwise the result has the fingerprint of
+     * the complete body.
+     * 
+     * @param task
+     *            the feed to get
+     * @param consumer
+     *            the object that reads the body
+     * @return the status and headers of the response, or null, if an error
+     *         occurred
+     */
+    FetchResult retrieve(FetchTask task, BodyConsumer consumer);
+}
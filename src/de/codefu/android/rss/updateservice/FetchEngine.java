@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+
+
+/**
+ * Runs the downloads of a whole refresh cycle in parallel.
+ * <p>
+ * The number of downloads that run at the same time is limited overall and
+ * per host so that a refresh of many feeds does not hammer a single server.
+ * Tasks are dispatched by the thread that calls {@link #run(Iterable)} and
+ * executed by a pool of worker threads. Each task is handed to the
+ * {@link Worker} as soon as a slot is free and the result is processed by the
+ * worker right after the download finished.
+ *
+ * @author mj
+ */
+class FetchEngine {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "FetchEngine";
+
+
+    /**
+     * Does the actual work for one task.
+     */
+    interface Worker {
+
+        /**
+         * Downloads and processes the data of one feed. Called on one of the
+         * engine's worker threads.
+         *
+         * @param task
+         *            the task to work on
+         */
+        void fetch(FetchTask task);
+    }
+
+
+    /**
+     * Maximum number of downloads running at the same time.
+     */
+    private final int maxParallel;
+    /**
+     * Maximum number of downloads running at the same time for one host.
+     */
+    private final int maxPerHost;
+    /**
+     * The object that does the actual downloading.
+     */
+    private final Worker worker;
+    /**
+     * Number of downloads currently running per host.
+     */
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    /**
+     * Number of downloads currently running.
+     */
+    private int running;
+
+
+    /**
+     * Creates a new engine.
+     *
+     * @param maxParallel
+     *            maximum number of downloads running at the same time
+     * @param maxPerHost
+     *            maximum number of downloads running at the same time for one
+     *            host
+     * @param worker
+     *            the object that downloads and processes a feed
+     */
+    public FetchEngine(int maxParallel, int maxPerHost, Worker worker) {
+        this.maxParallel = Math.max(1, maxParallel);
+        this.maxPerHost = Math.max(1, Math.min(maxPerHost, this.maxParallel));
+        this.worker = worker;
+    }
+
+
+    /**
+     * Runs all given tasks and returns when all of them are done.
+     *
+     * @param tasks
+     *            the tasks to run
+     * @return the wall-clock time in milliseconds it took to run all tasks
+     */
+    public long run(Iterable<FetchTask> tasks) {
+        final long start = System.currentTimeMillis();
+        final LinkedList<FetchTask> pending = new LinkedList<FetchTask>();
+        for (FetchTask task : tasks) {
+            pending.add(task);
+        }
+        final int count = pending.size();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(maxParallel);
+        try {
+            synchronized (this) {
+                while (!pending.isEmpty() || (running > 0)) {
+                    final FetchTask next = takeRunnable(pending);
+                    if (next != null) {
+                        startTask(executor, next);
+                    }
+                    else {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException e) {
+                            Log.w(TAG, "Interrupted while waiting for downloads");
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        final long duration = System.currentTimeMillis() - start;
+        Log.i(TAG, "Refreshed " + count + " feeds in " + duration + " ms (" + maxParallel + " parallel, "
+                        + maxPerHost + " per host)");
+        return duration;
+    }
+
+
+    /**
+     * Finds the first pending task that may be started right now and removes
+     * it from the list. Must be called while holding the engine's lock.
+     *
+     * @param pending
+     *            the tasks not yet started
+     * @return the task to start or null if no task may be started now
+     */
+    private FetchTask takeRunnable(LinkedList<FetchTask> pending) {
+        if (running >= maxParallel) {
+            return null;
+        }
+        final Iterator<FetchTask> it = pending.iterator();
+        while (it.hasNext()) {
+            final FetchTask task = it.next();
+            if (getRunning(task.getHost()) < maxPerHost) {
+                it.remove();
+                return task;
+            }
+        }
+        return null;
+    }
+
+
+    private void startTask(ExecutorService executor, final FetchTask task) {
+        final String host = task.getHost();
+        running++;
+        runningPerHost.put(host, getRunning(host) + 1);
+        executor.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    worker.fetch(task);
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Download of feed " + task.feedId + " failed", e);
+                }
+                finally {
+                    finishTask(host);
+                }
+            }
+        });
+    }
+
+
+    private synchronized void finishTask(String host) {
+        running--;
+        runningPerHost.put(host, getRunning(host) - 1);
+        notifyAll();
+    }
+
+
+    private int getRunning(String host) {
+        final Integer n = runningPerHost.get(host);
+        return (n != null) ? n : 0;
+    }
+}
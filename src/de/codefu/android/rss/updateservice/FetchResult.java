@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.net.HttpURLConnection;
+
+
+
+/**
+ * What {@link UrlHttpRetriever} found out when downloading a feed.
+ * 
+ * @author mj
+ */
+class FetchResult {
+
+    /**
+     * The HTTP status code of the response.
+     */
+    public int status;
+    /**
+     * The data downloaded or null if the server had nothing new.
+     */
+    public String body;
+    /**
+     * The ETag header of the response or null.
+     */
+    public String etag;
+    /**
+     * The Last-Modified header of the response or null.
+     */
+    public String lastModified;
+    /**
+     * The Content-Type header of the response or null.
+     */
+    public String contentType;
+    /**
+     * The number of bytes received from the server, i.e. the possibly
+     * compressed size of the body.
+     */
+    public long bytesReceived;
+    /**
+     * The number of bytes of the body after decompression.
+     */
+    public long bytesDecoded;
+    /**
+     * True, if the body was parsed while it was downloaded and its items are
+     * waiting in the temporary items table.
+     */
+    public boolean ingested;
+    /**
+     * True, if the body was cut off because it was larger than the feed's
+     * size limit.
+     */
+    public boolean truncated;
+    /**
+     * The fingerprint of the complete (decompressed) body or null if there is
+     * no body or it was cut off. See {@link FingerprintInputStream}.
+     */
+    public String bodyHash;
+    /**
+     * The number of redirects that were followed to get the response.
+     */
+    public int redirects;
+    /**
+     * The new URL of the feed if the server said that it moved permanently,
+     * or null.
+     */
+    public String movedTo;
+    /**
+     * The time in milliseconds spent connecting to the server(s).
+     */
+    public long connectMs;
+    /**
+     * The time in milliseconds the server(s) took to start answering.
+     */
+    public long firstByteMs;
+    /**
+     * The time in milliseconds spent receiving the body, including the time
+     * the consumer spent with it.
+     */
+    public long transferMs;
+
+
+    /**
+     * @return true, if the server said that the feed has not changed since
+     *         the last poll
+     */
+    public boolean isNotModified() {
+        return status == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+}
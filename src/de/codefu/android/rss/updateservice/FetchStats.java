@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import android.content.ContentValues;
+import de.codefu.android.rss.db.FeedProvider;
+
+
+
+/**
+ * The timings and counters of one poll of a feed, from the download to
+ * moving the new items to the final table. Written to the stats table of the
+ * {@link FeedProvider}.
+ * <p>
+ * When the feed is parsed while it is downloaded, the transfer time includes
+ * the parse time and the parse time includes the time spent waiting for data.
+ *
+ * @author mj
+ */
+class FetchStats {
+
+    public final long feedId;
+    /**
+     * When the poll started.
+     */
+    public final long time;
+    public int status = FeedProvider.STATS_STATUS_FAILED;
+    public int redirects;
+    public long connectMs;
+    public long firstByteMs;
+    public long transferMs;
+    public long bytesReceived;
+    public long parseMs;
+    /**
+     * The number of items found in the data.
+     */
+    public int itemsSeen;
+    /**
+     * The number of items that were not stored already.
+     */
+    public int itemsNew;
+    /**
+     * The number of items that were recognized as already stored and
+     * skipped before the parser stopped early.
+     */
+    public int itemsSkipped;
+    /**
+     * The time spent inserting the items into the temporary table.
+     */
+    public long insertMs;
+    /**
+     * The time spent moving the items to the final table.
+     */
+    public long moveMs;
+    /**
+     * True, if the items were stored. Only then the timings cover a complete
+     * download and processing of the feed.
+     */
+    public boolean ingested;
+    /**
+     * True, if the data was not well-formed XML. Only the items before the
+     * error were found. Not stored with the statistics.
+     */
+    public boolean malformed;
+
+
+    /**
+     * Creates the statistics of a poll that starts now.
+     *
+     * @param feedId
+     *            the ID of the feed that is polled
+     */
+    public FetchStats(long feedId) {
+        this(feedId, System.currentTimeMillis());
+    }
+
+
+    private FetchStats(long feedId, long time) {
+        this.feedId = feedId;
+        this.time = time;
+    }
+
+
+    /**
+     * Takes the status, timings and size of a download.
+     *
+     * @param result
+     *            the result of the download
+     */
+    public void setFetchResult(FetchResult result) {
+        status = result.status;
+        redirects = result.redirects;
+        connectMs = result.connectMs;
+        firstByteMs = result.firstByteMs;
+        transferMs = result.transferMs;
+        bytesReceived = result.bytesReceived;
+    }
+
+
+    /**
+     * @return the statistics as a row of the stats table
+     */
+    public ContentValues asContentValues() {
+        final ContentValues cv = new ContentValues();
+        cv.put(FeedProvider.STATS_COL_FEEDID, feedId);
+        cv.put(FeedProvider.STATS_COL_TIME, time);
+        cv.put(FeedProvider.STATS_COL_STATUS, status);
+        cv.put(FeedProvider.STATS_COL_REDIRECTS, redirects);
+        cv.put(FeedProvider.STATS_COL_CONNECTMS, connectMs);
+        cv.put(FeedProvider.STATS_COL_FIRSTBYTEMS, firstByteMs);
+        cv.put(FeedProvider.STATS_COL_TRANSFERMS, transferMs);
+        cv.put(FeedProvider.STATS_COL_BYTES, bytesReceived);
+        cv.put(FeedProvider.STATS_COL_PARSEMS, parseMs);
+        cv.put(FeedProvider.STATS_COL_ITEMSSEEN, itemsSeen);
+        cv.put(FeedProvider.STATS_COL_ITEMSNEW, itemsNew);
+        cv.put(FeedProvider.STATS_COL_ITEMSSKIPPED, itemsSkipped);
+        cv.put(FeedProvider.STATS_COL_INSERTMS, insertMs);
+        cv.put(FeedProvider.STATS_COL_MOVEMS, moveMs);
+        cv.put(FeedProvider.STATS_COL_INGESTED, ingested ? 1 : 0);
+        return cv;
+    }
+
+
+    /**
+     * Restores statistics from a row created with {@link #asContentValues()}.
+     *
+     * @param cv
+     *            the row
+     * @return the statistics
+     */
+    public static FetchStats fromContentValues(ContentValues cv) {
+        final FetchStats stats = new FetchStats(cv.getAsLong(FeedProvider.STATS_COL_FEEDID),
+                        cv.getAsLong(FeedProvider.STATS_COL_TIME));
+        stats.status = cv.getAsInteger(FeedProvider.STATS_COL_STATUS);
+        stats.redirects = cv.getAsInteger(FeedProvider.STATS_COL_REDIRECTS);
+        stats.connectMs = cv.getAsLong(FeedProvider.STATS_COL_CONNECTMS);
+        stats.firstByteMs = cv.getAsLong(FeedProvider.STATS_COL_FIRSTBYTEMS);
+        stats.transferMs = cv.getAsLong(FeedProvider.STATS_COL_TRANSFERMS);
+        stats.bytesReceived = cv.getAsLong(FeedProvider.STATS_COL_BYTES);
+        stats.parseMs = cv.getAsLong(FeedProvider.STATS_COL_PARSEMS);
+        stats.itemsSeen = cv.getAsInteger(FeedProvider.STATS_COL_ITEMSSEEN);
+        stats.itemsNew = cv.getAsInteger(FeedProvider.STATS_COL_ITEMSNEW);
+        stats.itemsSkipped = cv.getAsInteger(FeedProvider.STATS_COL_ITEMSSKIPPED);
+        stats.insertMs = cv.getAsLong(FeedProvider.STATS_COL_INSERTMS);
+        stats.moveMs = cv.getAsLong(FeedProvider.STATS_COL_MOVEMS);
+        stats.ingested = cv.getAsInteger(FeedProvider.STATS_COL_INGESTED) != 0;
+        return stats;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import de.codefu.android.rss.db.FeedProvider;
+
+
+
+/**
+ * Everything that is needed to download the data of one feed.
+ *
+ * @author mj
+ */
+class FetchTask {
+
+    /**
+     * The ID of the feed to poll.
+     */
+    public final long feedId;
+    /**
+     * The URL of the feed's data.
+     */
+    public final String url;
+    /**
+     * Last poll date in milliseconds (see {@link System#currentTimeMillis()}).
+     */
+    public final long lastPollDateMs;
+    /**
+     * The ETag the server sent with the last response that had data or null.
+     */
+    public final String etag;
+    /**
+     * The Last-Modified header the server sent with the last response that
+     * had data or null.
+     */
+    public final String lastModified;
+    /**
+     * The maximum number of bytes of the (decompressed) data that is
+     * processed. Anything beyond is cut off.
+     */
+    public final long maxBytes;
+    /**
+     * The fingerprint of the data that was processed the last time or null.
+     */
+    public final String bodyHash;
+    /**
+     * The number of polls in a row that failed.
+     */
+    public final int failures;
+    /**
+     * The time in milliseconds before which the feed must not be polled
+     * because of earlier failures. See {@link FeedBackoff}.
+     */
+    public final long nextRetryMs;
+    /**
+     * The state of the feed's circuit breaker, one of the BREAKER_ constants
+     * in {@link FeedProvider}.
+     */
+    public final int breaker;
+    /**
+     * The engine that parses the data, {@link FeedProvider#PARSER_SAX} or
+     * {@link FeedProvider#PARSER_PULL}.
+     */
+    public final int parser;
+
+
+    public FetchTask(long feedId, String url, long lastPollDateMs, String etag, String lastModified, long maxBytes,
+                    String bodyHash, int failures, long nextRetryMs, int breaker, int parser) {
+        this.feedId = feedId;
+        this.url = url;
+        this.lastPollDateMs = lastPollDateMs;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.maxBytes = maxBytes;
+        this.bodyHash = bodyHash;
+        this.failures = failures;
+        this.nextRetryMs = nextRetryMs;
+        this.breaker = breaker;
+        this.parser = parser;
+    }
+
+
+    /**
+     * @return the lower case host name of the feed's URL or an empty string if
+     *         the URL cannot be parsed. Used to limit the number of parallel
+     *         downloads from one host.
+     */
+    public String getHost() {
+        try {
+            final String host = new URL(url).getHost();
+            return (host != null) ? host.toLowerCase() : "";
+        }
+        catch (MalformedURLException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * An input stream that computes a 64 bit FNV-1a hash of the bytes read
+ * through it. Used to recognize feed data that has not changed since the last
+ * poll.
+ * 
+ * @author mj
+ */
+class FingerprintInputStream extends FilterInputStream {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long hash = FNV_OFFSET_BASIS;
+
+
+    public FingerprintInputStream(InputStream in) {
+        super(in);
+    }
+
+
+    /**
+     * @return the hash of the bytes read so far as a hex string
+     */
+    public String getFingerprint() {
+        final String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+
+    /**
+     * Reads the rest of the stream so that the fingerprint covers all data.
+     * 
+     * @throws IOException
+     */
+    public void readToEnd() throws IOException {
+        final byte[] buffer = new byte[1024];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // only hash
+        }
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+            hash = (hash ^ b) * FNV_PRIME;
+        }
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        final int n = super.read(buffer, offset, length);
+        for (int i = offset; i < offset + n; i++) {
+            hash = (hash ^ (buffer[i] & 0xff)) * FNV_PRIME;
+        }
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes have to be hashed, too.
+        final byte[] buffer = new byte[(int) Math.min(n, 1024)];
+        final int read = read(buffer, 0, buffer.length);
+        return (read > 0) ? read : 0;
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+
+
+/**
+ * Serves feed data that was recorded into a {@link FeedCorpus} instead of
+ * downloading it, so that a refresh of many feeds can be replayed
+ * deterministically.
+ * <p>
+ * Like a server, it answers with 304 if the task sends back the ETag or
+ * Last-Modified value of the recording. Feeds without a recording fail.
+ *
+ * @author mj
+ */
+class FixtureRetriever implements FeedRetriever {
+
+    private final FeedCorpus corpus;
+
+
+    /**
+     * @param corpus
+     *            the recordings to serve
+     */
+    public FixtureRetriever(FeedCorpus corpus) {
+        this.corpus = corpus;
+    }
+
+
+    public FetchResult retrieve(FetchTask task, BodyConsumer consumer) {
+        final Properties meta = corpus.readMeta(task.url);
+        if (meta == null) {
+            Log.i("FixtureR", "no recording: " + task.url);
+            return null;
+        }
+
+        final FetchResult result = new FetchResult();
+        result.status = Integer.parseInt(meta.getProperty(FeedCorpus.META_STATUS, "200"));
+        result.etag = meta.getProperty(FeedCorpus.META_ETAG);
+        result.lastModified = meta.getProperty(FeedCorpus.META_LAST_MODIFIED);
+        result.contentType = meta.getProperty(FeedCorpus.META_CONTENT_TYPE);
+        if (((task.etag != null) && task.etag.equals(result.etag))
+                        || ((task.lastModified != null) && task.lastModified.equals(result.lastModified))) {
+            final FetchResult notModified = new FetchResult();
+            notModified.status = HttpURLConnection.HTTP_NOT_MODIFIED;
+            return notModified;
+        }
+
+        final long startMs = SystemClock.uptimeMillis();
+        try {
+            final InputStream in = new FileInputStream(corpus.getBodyFile(task.url));
+            try {
+                ResponseBody.consume(task, result, in, result.contentType, consumer);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        result.transferMs = SystemClock.uptimeMillis() - startMs;
+        result.bytesReceived = result.bytesDecoded;
+        return result;
+    }
+}
@@ -0,0 +1,554 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import de.codefu.android.rss.db.ItemProvider;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * Processes downloaded feeds in stages that run in their own threads:
+ * <ol>
+ * <li>{@link #STAGE_DOWNLOAD} is done by the caller, usually the workers of a
+ * {@link FetchEngine}. Decompression and charset decoding happen while the
+ * data is read, so the result is the decoded feed.</li>
+ * <li>{@link #STAGE_PARSE} turns the data into items and cleans them. Several
+ * feeds are parsed at the same time.</li>
+ * <li>{@link #STAGE_DEDUP} drops items whose GUID is already stored or occurs
+ * twice in the data, so that they are not written only to be thrown away by
+ * the database.</li>
+ * <li>{@link #STAGE_WRITE} stores the items and updates the feed. There is only
+ * one writer because the database has only one, too.</li>
+ * </ol>
+ * The stages are connected by bounded queues. If a stage falls behind, the
+ * stages in front of it block when its queue is full, so at most a few feeds
+ * are held in memory.
+ * <p>
+ * For each stage the number of feeds, the time spent processing them, the
+ * time they waited in the stage's queue and the largest queue depth are
+ * counted.
+ *
+ * @author mj
+ */
+class IngestPipeline {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "IngestPipeline";
+
+    public static final int STAGE_DOWNLOAD = 0;
+    public static final int STAGE_PARSE = 1;
+    public static final int STAGE_DEDUP = 2;
+    public static final int STAGE_WRITE = 3;
+
+    private static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {"download", "parse", "dedup", "write"};
+
+    /**
+     * The number of feeds that may wait in front of a stage.
+     */
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * How long {@link #finish()} waits for the feeds still in the pipeline.
+     * When it is called all downloads are done, so only the few feeds in the
+     * queues are left.
+     */
+    private static final long FINISH_TIMEOUT_MS = 2 * 60 * 1000;
+
+
+    /**
+     * Is told when a feed leaves the pipeline.
+     */
+    interface Listener {
+
+        /**
+         * Called from the thread of the stage the feed left the pipeline
+         * from.
+         *
+         * @param job
+         *            the feed
+         * @param stored
+         *            true, if the feed's items were stored; false, if a stage
+         *            failed or the feed does not exist anymore
+         */
+        void ingested(Job job, boolean stored);
+    }
+
+
+    /**
+     * A feed on its way through the pipeline.
+     */
+    static class Job implements FeedHandlerClient {
+
+        final FetchTask task;
+        final FetchResult result;
+        final FetchStats stats;
+        int cleanHtml;
+        final List<Item> items = new ArrayList<Item>();
+        boolean hasFeedInfo;
+        String name;
+        String description;
+        String siteUrl;
+        UpdateHints hints;
+        /**
+         * When the job was put into the queue it is waiting in.
+         */
+        long queuedMs;
+
+
+        /**
+         * @param task
+         *            the feed
+         * @param result
+         *            the downloaded data
+         * @param stats
+         *            the statistics of the poll
+         */
+        Job(FetchTask task, FetchResult result, FetchStats stats) {
+            this.task = task;
+            this.result = result;
+            this.stats = stats;
+        }
+
+
+        public void addItem(long feedId, int cleanHtml, Item item) {
+            FeedInserter.clean(cleanHtml, item);
+            items.add(item);
+        }
+
+
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+            hasFeedInfo = true;
+            this.name = name;
+            this.description = description;
+            this.siteUrl = url;
+            this.hints = hints;
+        }
+    }
+
+
+    /**
+     * Marks the end of the input of a stage.
+     */
+    private static final Job END = new Job(null, null, null);
+
+    private final ContentResolver resolver;
+    private final Listener listener;
+    private final int parseThreads;
+    /**
+     * The number of known items in a row after which parsing a feed stops, or
+     * 0.
+     */
+    private int earlyStopRun;
+    private final BlockingQueue<Job> parseQueue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+    private final BlockingQueue<Job> dedupQueue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+    private final BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+    /**
+     * The number of parse threads that did not see the end of their input
+     * yet.
+     */
+    private final AtomicInteger runningParsers = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private Thread writer;
+
+    private final int[] jobs = new int[STAGE_COUNT];
+    private final long[] busyMs = new long[STAGE_COUNT];
+    private final long[] maxBusyMs = new long[STAGE_COUNT];
+    private final long[] waitMs = new long[STAGE_COUNT];
+    private final int[] maxDepth = new int[STAGE_COUNT];
+
+
+    /**
+     * @param resolver
+     *            the resolver to read and store items with
+     * @param parseThreads
+     *            the number of feeds that are parsed at the same time
+     * @param listener
+     *            is told when a feed leaves the pipeline
+     */
+    public IngestPipeline(ContentResolver resolver, int parseThreads, Listener listener) {
+        this.resolver = resolver;
+        this.parseThreads = Math.max(1, parseThreads);
+        this.listener = listener;
+    }
+
+
+    /**
+     * Makes the parse stage skip the items that are already stored for a feed
+     * and stop after a run of them. Must be called before {@link #start()}.
+     * 
+     * @param earlyStopRun
+     *            the number of known items in a row after which the rest of a
+     *            feed is not read; 0 to read all data
+     */
+    public void setEarlyStopRun(int earlyStopRun) {
+        this.earlyStopRun = earlyStopRun;
+    }
+
+
+    /**
+     * Starts the threads of the stages.
+     */
+    public void start() {
+        runningParsers.set(parseThreads);
+        for (int i = 0; i < parseThreads; i++) {
+            startThread(new ParseStage(), STAGE_NAMES[STAGE_PARSE] + "-" + i);
+        }
+        startThread(new DedupStage(), STAGE_NAMES[STAGE_DEDUP]);
+        writer = startThread(new WriteStage(), STAGE_NAMES[STAGE_WRITE]);
+    }
+
+
+    private Thread startThread(Runnable stage, String name) {
+        final Thread t = new Thread(stage, TAG + "-" + name);
+        threads.add(t);
+        t.start();
+        return t;
+    }
+
+
+    /**
+     * Hands a downloaded feed to the parse stage. Blocks while the parse
+     * stage's queue is full.
+     *
+     * @param job
+     *            the feed
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    public void submit(Job job) throws InterruptedException {
+        final FetchResult r = job.result;
+        record(STAGE_DOWNLOAD, r.connectMs + r.firstByteMs + r.transferMs, 0);
+        enqueue(STAGE_PARSE, job);
+    }
+
+
+    /**
+     * Tells the stages that no more feeds come and waits until all feeds
+     * submitted so far left the pipeline. If that takes longer than
+     * {@link #FINISH_TIMEOUT_MS}, the stages are interrupted and the feeds
+     * still in the pipeline are lost.
+     *
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < parseThreads; i++) {
+            parseQueue.put(END);
+        }
+        writer.join(FINISH_TIMEOUT_MS);
+        if (writer.isAlive()) {
+            Log.w(TAG, "stages did not finish within " + FINISH_TIMEOUT_MS + " ms; interrupting them");
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * @return a short description of the counters of all stages for logging
+     */
+    public synchronized String getSummary() {
+        final StringBuilder sb = new StringBuilder("pipeline:");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final int n = Math.max(jobs[i], 1);
+            sb.append(i == 0 ? " " : "; ").append(STAGE_NAMES[i]).append(' ').append(jobs[i]).append(" feeds, avg ")
+                            .append(busyMs[i] / n).append(" ms, max ").append(maxBusyMs[i]).append(" ms, avg wait ")
+                            .append(waitMs[i] / n).append(" ms, max queue ").append(maxDepth[i]);
+        }
+        return sb.toString();
+    }
+
+
+    private BlockingQueue<Job> getQueue(int stage) {
+        switch (stage) {
+            case STAGE_PARSE:
+                return parseQueue;
+            case STAGE_DEDUP:
+                return dedupQueue;
+            case STAGE_WRITE:
+                return writeQueue;
+            default:
+                return null;
+        }
+    }
+
+
+    private void enqueue(int stage, Job job) throws InterruptedException {
+        final BlockingQueue<Job> queue = getQueue(stage);
+        job.queuedMs = SystemClock.uptimeMillis();
+        queue.put(job);
+        final int depth = queue.size();
+        synchronized (this) {
+            maxDepth[stage] = Math.max(maxDepth[stage], depth);
+        }
+    }
+
+
+    private synchronized void record(int stage, long ms, long waitedMs) {
+        jobs[stage]++;
+        busyMs[stage] += ms;
+        maxBusyMs[stage] = Math.max(maxBusyMs[stage], ms);
+        waitMs[stage] += waitedMs;
+    }
+
+
+    /**
+     * The loop of a stage's thread: takes feeds from the stage's queue,
+     * processes them and hands them on.
+     */
+    private abstract class Stage implements Runnable {
+
+        private final int stage;
+
+
+        Stage(int stage) {
+            this.stage = stage;
+        }
+
+
+        public void run() {
+            final BlockingQueue<Job> queue = getQueue(stage);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    final Job job = queue.take();
+                    if (job == END) {
+                        return;
+                    }
+                    handle(job);
+                }
+            }
+            catch (InterruptedException e) {
+                Log.w(TAG, STAGE_NAMES[stage] + " interrupted");
+                interrupted = true;
+            }
+            finally {
+                // The next stage must see the end even if this one failed, or
+                // finish() waits for the writer in vain.
+                ended(interrupted);
+            }
+        }
+
+
+        /**
+         * Processes one feed and hands it on. Nothing a feed does may end the
+         * stage's thread, so all failures are caught here.
+         */
+        private void handle(Job job) throws InterruptedException {
+            final long startMs = SystemClock.uptimeMillis();
+            boolean ok;
+            try {
+                ok = process(job);
+            }
+            catch (Throwable e) {
+                Log.e(TAG, STAGE_NAMES[stage] + " failed for feed " + job.task.feedId, e);
+                ok = false;
+            }
+            record(stage, SystemClock.uptimeMillis() - startMs, startMs - job.queuedMs);
+            if (ok && (stage != STAGE_WRITE)) {
+                enqueue(stage + 1, job);
+                return;
+            }
+            try {
+                listener.ingested(job, ok);
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "listener failed for feed " + job.task.feedId, e);
+            }
+        }
+
+
+        /**
+         * Called when the end of the input is reached or the stage stops for
+         * another reason. Passes the end on to the next stage.
+         *
+         * @param interrupted
+         *            true, if the stage was interrupted; the end is then only
+         *            passed on if there is room in the next queue because the
+         *            next stage was interrupted, too
+         */
+        void ended(boolean interrupted) {
+            if (stage == STAGE_WRITE) {
+                return;
+            }
+            final BlockingQueue<Job> next = getQueue(stage + 1);
+            if (interrupted) {
+                next.offer(END);
+                return;
+            }
+            try {
+                next.put(END);
+            }
+            catch (InterruptedException e) {
+                next.offer(END);
+            }
+        }
+
+
+        /**
+         * @param job
+         *            the feed
+         * @return true, if the feed goes on to the next stage
+         */
+        abstract boolean process(Job job);
+    }
+
+
+    private class ParseStage extends Stage {
+
+        ParseStage() {
+            super(STAGE_PARSE);
+        }
+
+
+        @Override
+        void ended(boolean interrupted) {
+            if (runningParsers.decrementAndGet() == 0) {
+                super.ended(interrupted);
+            }
+        }
+
+
+        @Override
+        boolean process(Job job) {
+            final long feedId = job.task.feedId;
+            final long startMs = SystemClock.uptimeMillis();
+            job.cleanHtml = new FeedInserter(resolver, job.stats).getCleanHtml(feedId);
+            if (job.cleanHtml == FeedInserter.VALUE_UNSET) {
+                return false;
+            }
+            try {
+                final FeedHandler handler = new FeedHandler(feedId, job.cleanHtml, job, TimeZone.getDefault());
+                if (earlyStopRun > 0) {
+                    handler.setEarlyStop(KnownItems.load(resolver, feedId), earlyStopRun);
+                }
+                if (!FeedInserter.getParser(job.task.parser).parse(new StringReader(job.result.body), handler)) {
+                    job.stats.malformed = true;
+                }
+                job.stats.itemsSkipped += handler.getSkippedItems();
+            }
+            catch (IOException e) {
+                return false;
+            }
+            // The data is not needed anymore.
+            job.result.body = null;
+            job.stats.parseMs += SystemClock.uptimeMillis() - startMs;
+            job.stats.itemsSeen += job.items.size();
+            return true;
+        }
+    }
+
+
+    private class DedupStage extends Stage {
+
+        DedupStage() {
+            super(STAGE_DEDUP);
+        }
+
+
+        @Override
+        boolean process(Job job) {
+            final Set<String> guids = getStoredGuids(job.task.feedId);
+            final int before = job.items.size();
+            final List<Item> items = new ArrayList<Item>(before);
+            for (Item item : job.items) {
+                if ((item.guid == null) || guids.add(item.guid)) {
+                    items.add(item);
+                }
+            }
+            job.items.clear();
+            job.items.addAll(items);
+            if (items.size() != before) {
+                Log.d(TAG, "dropped " + (before - items.size()) + " known items of feed " + job.task.feedId);
+            }
+            return true;
+        }
+
+
+        private Set<String> getStoredGuids(long feedId) {
+            final Set<String> guids = new HashSet<String>();
+            Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
+            uri = uri.buildUpon().encodedFragment(ItemProvider.KNOWN).build();
+            final Cursor c = resolver.query(uri, null, null, null, null);
+            if (c != null) {
+                final int ciGuid = c.getColumnIndex(ItemProvider.ITEMS_COL_GUID);
+                while (c.moveToNext()) {
+                    if (!c.isNull(ciGuid)) {
+                        guids.add(c.getString(ciGuid));
+                    }
+                }
+                c.close();
+            }
+            return guids;
+        }
+    }
+
+
+    private class WriteStage extends Stage {
+
+        WriteStage() {
+            super(STAGE_WRITE);
+        }
+
+
+        @Override
+        boolean process(Job job) {
+            final long feedId = job.task.feedId;
+            final FeedInserter inserter = new FeedInserter(resolver, job.stats);
+            boolean committed = false;
+            try {
+                inserter.addItems(feedId, job.items);
+                if (job.hasFeedInfo) {
+                    inserter.updateFeed(feedId, job.name, job.description, job.siteUrl, job.hints);
+                }
+                inserter.commit(feedId, job.result.etag, job.result.lastModified, job.result.bodyHash);
+                committed = true;
+            }
+            finally {
+                if (!committed) {
+                    inserter.discard(feedId);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -20,25 +20,13 @@ package de.codefu.android.rss.updateservice;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.TimeZone;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import android.app.IntentService;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import de.codefu.android.rss.MainPreferences;
 import de.codefu.android.rss.db.FeedProvider;
-import de.codefu.android.rss.db.ItemProvider;
 
 
 
@@ -46,12 +34,19 @@ import de.codefu.android.rss.db.ItemProvider;
  * The service that gets feed data or a reference to a database record,
  * processes that data through a SAX parser into individual news items and
  * inserts these into the database.
+ * <p>
+ * The actual work is done by a {@link FeedInserter}. The statistics of the
+ * poll, which the {@link UpdateService} started, are completed and stored.
+ * The feeds that got new items are announced by a {@link DataChangedNotifier}
+ * so that a burst of intents does not cause a broadcast per feed. Data for
+ * which newer data of the same feed is already queued is not parsed (see
+ * {@link PendingPayloads}).
  * 
  * @author mj
  */
-public class InsertService extends IntentService implements FeedHandlerClient {
+public class InsertService extends IntentService {
 
-    private static final int VALUE_UNSET = -1;
+    private DataChangedNotifier notifier;
 
 
     public InsertService() {
@@ -59,6 +54,13 @@ public class InsertService extends IntentService implements FeedHandlerClient {
     }
 
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notifier = new DataChangedNotifier(this);
+    }
+
+
     @Override
     protected void onHandleIntent(Intent intent) {
         Bundle extras = intent.getExtras();
@@ -66,13 +68,25 @@ public class InsertService extends IntentService implements FeedHandlerClient {
             ServiceComm.IntentContent ic = ServiceComm.getInsertContent(this, intent);
             Log.i("InsertService", "Inserting content for feed " + ic.feedId);
 
-            final int cleanHtml = getCleanHtml(ic.feedId);
-            if (cleanHtml != VALUE_UNSET) {
-                final TimeZone tz = TimeZone.getDefault();
-                process(ic.content, ic.feedId, new FeedHandler(ic.feedId, cleanHtml, this, tz));
-                touchFeed(ic.feedId);
-
-                ServiceComm.sendDataChangedBroadcast(this);
+            if (ic.superseded) {
+                Log.i("InsertService", PendingPayloads.getInstance().getSummary());
+                getContentResolver().insert(FeedProvider.CONTENT_URI_STATS, ic.stats.asContentValues());
+            }
+            else if ((ic.content != null) && (ic.content.length() != 0)) {
+                final FeedInserter inserter = new FeedInserter(getContentResolver(), ic.stats,
+                                FeedInserter.getParser(ic.parser));
+                inserter.setEarlyStopRun(MainPreferences.getEarlyStopRun(this));
+                try {
+                    if (inserter.ingest(ic.feedId, new StringReader(ic.content), ic.etag, ic.lastModified,
+                                    ic.bodyHash)) {
+                        notifier.feedChanged(ic.feedId);
+                        ServiceComm.sendMalformedBroadcast(this, ic.stats, ic.truncated);
+                    }
+                }
+                catch (IOException e) {
+                    Log.e("InsertService", "Could not read content for feed " + ic.feedId, e);
+                }
+                getContentResolver().insert(FeedProvider.CONTENT_URI_STATS, ic.stats.asContentValues());
             }
         }
 
@@ -80,100 +94,10 @@ public class InsertService extends IntentService implements FeedHandlerClient {
     }
 
 
-    private int getCleanHtml(final long feedId) {
-        final Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
-        final Cursor c = getContentResolver().query(uri, null, null, null, null);
-        int cleanHtml = VALUE_UNSET;
-        if (c != null) {
-            if (c.moveToFirst()) {
-                cleanHtml = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_CLEANHTML));
-            }
-            c.close();
-        }
-        return cleanHtml;
-    }
-
-
     @Override
     public void onDestroy() {
+        // All queued intents are processed.
+        notifier.flush();
         super.onDestroy();
     }
-
-
-    private void process(final String content, final long feedId, final FeedHandler feedHandler) {
-        if ((content != null) && (content.length() != 0)) {
-            processXml(content, feedId, feedHandler);
-            Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
-            uri = uri.buildUpon().encodedFragment("move").build();
-            getContentResolver().insert(uri, null);
-        }
-    }
-
-
-    void processXml(final String content, final long feedId, final FeedHandler feedHandler) {
-        final SAXParserFactory fac = SAXParserFactory.newInstance();
-        try {
-            final SAXParser parser = fac.newSAXParser();
-            InputSource source = new InputSource(new StringReader(content));
-            parser.parse(source, feedHandler);
-        }
-        catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        }
-        catch (SAXException e) {
-            e.printStackTrace();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-
-    public void addItem(long feedId, int cleanHtml, Item item) {
-        if (cleanHtml == FeedProvider.CLEAN_STRIP_HTML) {
-            item.content = Utils.htmlClean(item.content);
-            item.headline = Utils.htmlClean(item.headline);
-        }
-        Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
-        getContentResolver().insert(uri, asContentValues(item));
-    }
-
-
-    public ContentValues asContentValues(Item item) {
-        ContentValues cv = new ContentValues();
-        if (item.headline != null) {
-            cv.put(ItemProvider.ITEMS_COL_HEADLINE, item.headline);
-        }
-        if (item.content != null) {
-            cv.put(ItemProvider.ITEMS_COL_CONTENT, item.content);
-        }
-        if (item.date != null) {
-            cv.put(ItemProvider.ITEMS_COL_DATE, item.date.getTime());
-        }
-        if (item.link != null) {
-            cv.put(ItemProvider.ITEMS_COL_LINK, item.link.toString());
-        }
-        if (item.guid != null) {
-            cv.put(ItemProvider.ITEMS_COL_GUID, item.guid.toString());
-        }
-        return cv;
-    }
-
-
-    public void updateFeed(long feedId, String name, String description, String url) {
-        ContentValues cv = new ContentValues();
-        cv.put(FeedProvider.FEEDS_COL_NAME, name);
-        cv.put(FeedProvider.FEEDS_COL_DESCRIPTION, description);
-        cv.put(FeedProvider.FEEDS_COL_SITEURL, url);
-        Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
-        getContentResolver().update(uri, cv, null, null);
-    }
-
-
-    private void touchFeed(long feedId) {
-        ContentValues cv = new ContentValues();
-        cv.put(FeedProvider.FEEDS_COL_LASTPOLLDATE, System.currentTimeMillis());
-        Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
-        getContentResolver().update(uri, cv, null, null);
-    }
 }
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import de.codefu.android.rss.db.ItemProvider;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * The GUIDs and links of the items that are already stored for a feed. Used
+ * to recognize items that were delivered by an earlier poll.
+ *
+ * @author mj
+ */
+class KnownItems {
+
+    private final Set<String> guids = new HashSet<String>();
+    private final Set<String> links = new HashSet<String>();
+
+
+    /**
+     * Reads the GUIDs and links of the items stored for a feed.
+     *
+     * @param resolver
+     *            the resolver to query
+     * @param feedId
+     *            the ID of the feed
+     * @return the known items of the feed
+     */
+    public static KnownItems load(ContentResolver resolver, long feedId) {
+        final KnownItems known = new KnownItems();
+        Uri uri = ContentUris.withAppendedId(ItemProvider.CONTENT_URI_FEED, feedId);
+        uri = uri.buildUpon().encodedFragment(ItemProvider.KNOWN).build();
+        final Cursor c = resolver.query(uri, null, null, null, null);
+        if (c != null) {
+            final int ciGuid = c.getColumnIndex(ItemProvider.ITEMS_COL_GUID);
+            final int ciLink = c.getColumnIndex(ItemProvider.ITEMS_COL_LINK);
+            while (c.moveToNext()) {
+                known.add(c.isNull(ciGuid) ? null : c.getString(ciGuid), c.isNull(ciLink) ? null : c.getString(ciLink));
+            }
+            c.close();
+        }
+        return known;
+    }
+
+
+    /**
+     * Remembers an item as known.
+     *
+     * @param guid
+     *            the item's GUID or null
+     * @param link
+     *            the item's link or null
+     */
+    void add(String guid, String link) {
+        if (guid != null) {
+            guids.add(guid);
+        }
+        else if (link != null) {
+            links.add(link);
+        }
+    }
+
+
+    /**
+     * An item is known if its GUID is known. Items without a GUID are
+     * recognized by their link. Items that have neither are never known.
+     *
+     * @param item
+     *            the item
+     * @return true, if the item is already stored
+     */
+    public boolean contains(Item item) {
+        if (item.guid != null) {
+            return guids.contains(item.guid);
+        }
+        return (item.link != null) && links.contains(item.link);
+    }
+}
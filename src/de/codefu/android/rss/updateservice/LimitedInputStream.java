@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * An input stream that ends after a maximum number of bytes. If there would
+ * have been more data the stream is marked as truncated.
+ *
+ * @author mj
+ */
+class LimitedInputStream extends FilterInputStream {
+
+    /**
+     * The number of bytes that may still be read.
+     */
+    private long remaining;
+    private boolean truncated;
+
+
+    /**
+     * @param in
+     *            the stream to read from
+     * @param maxBytes
+     *            the maximum number of bytes to deliver
+     */
+    public LimitedInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.remaining = maxBytes;
+    }
+
+
+    /**
+     * @return true, if the stream ended because the limit was reached and
+     *         there was more data
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (isAtLimit()) {
+            return -1;
+        }
+        final int b = super.read();
+        if (b != -1) {
+            remaining--;
+        }
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (isAtLimit()) {
+            return -1;
+        }
+        final int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (remaining <= 0) {
+            return 0;
+        }
+        final long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+
+    /**
+     * Checks whether the limit is reached. The first time this happens one
+     * more byte is read from the underlying stream to find out whether the
+     * data was cut off.
+     */
+    private boolean isAtLimit() throws IOException {
+        if (remaining > 0) {
+            return false;
+        }
+        if (!truncated && (remaining == 0)) {
+            truncated = (in.read() != -1);
+            remaining = -1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import android.content.Context;
+import android.util.Log;
+
+
+
+/**
+ * A directory where feed data that is too large for an intent waits for the
+ * {@link InsertService}. The intent only carries the name of the file.
+ * <p>
+ * The data is written with one sequential write and read back through a
+ * memory mapped buffer. Files that were never picked up (e.g. because the
+ * device was switched off) are removed by {@link #clear()}.
+ *
+ * @author mj
+ */
+public class PayloadSpool {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "PayloadSpool";
+
+    private static final String SPOOL_DIR = "spool";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File dir;
+
+
+    /**
+     * @param context
+     *            the context whose private storage holds the spool directory
+     */
+    public PayloadSpool(Context context) {
+        this.dir = context.getDir(SPOOL_DIR, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Stores feed data in a new file.
+     *
+     * @param feedId
+     *            the ID of the feed the data belongs to
+     * @param body
+     *            the data
+     * @return the name of the file
+     * @throws IOException
+     *             if the data could not be written
+     */
+    public String write(long feedId, String body) throws IOException {
+        final File file = File.createTempFile("feed" + feedId + "-", ".xml", dir);
+        boolean written = false;
+        try {
+            final Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file),
+                            BUFFER_SIZE), ENCODING);
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+            written = true;
+        }
+        finally {
+            if (!written) {
+                file.delete();
+            }
+        }
+        return file.getName();
+    }
+
+
+    /**
+     * Reads feed data stored with {@link #write(long, String)} and deletes
+     * the file.
+     *
+     * @param name
+     *            the name of the file
+     * @return the data or null if it could not be read
+     */
+    public String take(String name) {
+        final File file = new File(dir, name);
+        try {
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel channel = in.getChannel();
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return Charset.forName(ENCODING).decode(buffer).toString();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not read " + file, e);
+            return null;
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Deletes a file without reading it.
+     *
+     * @param name
+     *            the name of the file
+     */
+    public void discard(String name) {
+        new File(dir, name).delete();
+    }
+
+
+    /**
+     * Deletes all files in the spool.
+     *
+     * @return the number of files deleted
+     */
+    public int clear() {
+        int count = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.delete()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+
+/**
+ * A singleton that knows the newest feed data waiting for the
+ * {@link InsertService} for each feed.
+ * <p>
+ * When a feed is polled again while the data of the previous poll is still
+ * queued (e.g. an automatic poll and a manual refresh while the service is
+ * busy), only the newest data is worth processing. Each insert intent gets a
+ * number from {@link #register(long)} and the service asks
+ * {@link #claim(long, long)} before parsing the data. Data for which newer
+ * data was registered is dropped and counted.
+ *
+ * @author mj
+ */
+class PendingPayloads {
+
+    /**
+     * The holder.
+     */
+    private static class PendingPayloadsHolder {
+
+        public static final PendingPayloads HOLDER = new PendingPayloads();
+    }
+
+
+    /**
+     * @return a reference to the singleton
+     */
+    public static PendingPayloads getInstance() {
+        return PendingPayloadsHolder.HOLDER;
+    }
+
+
+    /**
+     * The number of the newest registered data per feed ID.
+     */
+    private final Map<Long, Long> newest = new HashMap<Long, Long>();
+    private long lastNumber;
+    private int dropped;
+
+
+    private PendingPayloads() {
+    }
+
+
+    /**
+     * Registers new data for a feed. Older data of the same feed that was not
+     * claimed yet is superseded by it.
+     *
+     * @param feedId
+     *            the ID of the feed
+     * @return the number of the data, which must be passed to
+     *         {@link #claim(long, long)}
+     */
+    public synchronized long register(long feedId) {
+        final long number = ++lastNumber;
+        newest.put(feedId, number);
+        return number;
+    }
+
+
+    /**
+     * Asks whether data is still the newest of its feed and may be processed.
+     *
+     * @param feedId
+     *            the ID of the feed
+     * @param number
+     *            the number {@link #register(long)} returned for the data or
+     *            0 if it was not registered
+     * @return true, if the data should be processed; false, if newer data of
+     *         the feed is waiting and this data should be dropped
+     */
+    public synchronized boolean claim(long feedId, long number) {
+        final Long newestNumber = newest.get(feedId);
+        if (newestNumber == null) {
+            return true;
+        }
+        if (newestNumber > number) {
+            dropped++;
+            return false;
+        }
+        newest.remove(feedId);
+        return true;
+    }
+
+
+    /**
+     * @return the number of superseded data dropped since the application
+     *         started
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+
+    /**
+     * @return a short description of the counters for logging
+     */
+    public synchronized String getSummary() {
+        return "pending payloads: " + newest.size() + " waiting, " + dropped + " superseded";
+    }
+}
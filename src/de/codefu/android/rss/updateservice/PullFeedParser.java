@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.util.Log;
+
+
+
+/**
+ * Parses feeds with an XmlPull parser.
+ * <p>
+ * The engine pulls one event after the other from the parser and hands it to
+ * the {@link FeedHandler}, so it can simply stop pulling when the handler was
+ * stopped and the rest of the data is not read at all. Text is passed to the
+ * handler from the parser's buffer and the attributes are read from the
+ * parser directly.
+ *
+ * @author mj
+ */
+class PullFeedParser implements FeedParser {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "PullFeedParser";
+
+    /**
+     * The parser of each thread.
+     */
+    private final ThreadLocal<XmlPullParser> parsers = new ThreadLocal<XmlPullParser>();
+
+
+    /**
+     * Makes the attributes of the current start tag of a pull parser
+     * available as SAX attributes.
+     */
+    private static class PullAttributes implements Attributes {
+
+        private final XmlPullParser parser;
+
+
+        PullAttributes(XmlPullParser parser) {
+            this.parser = parser;
+        }
+
+
+        public int getLength() {
+            return parser.getAttributeCount();
+        }
+
+
+        public String getURI(int index) {
+            return parser.getAttributeNamespace(index);
+        }
+
+
+        public String getLocalName(int index) {
+            return parser.getAttributeName(index);
+        }
+
+
+        public String getQName(int index) {
+            final String prefix = parser.getAttributePrefix(index);
+            final String name = parser.getAttributeName(index);
+            return (prefix != null) ? prefix + ":" + name : name;
+        }
+
+
+        public String getType(int index) {
+            return "CDATA";
+        }
+
+
+        public String getValue(int index) {
+            return parser.getAttributeValue(index);
+        }
+
+
+        public int getIndex(String uri, String localName) {
+            for (int i = 0; i < getLength(); i++) {
+                if (parser.getAttributeNamespace(i).equals(uri) && parser.getAttributeName(i).equals(localName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+        public int getIndex(String qName) {
+            for (int i = 0; i < getLength(); i++) {
+                final String prefix = parser.getAttributePrefix(i);
+                final String name = parser.getAttributeName(i);
+                if (prefix == null) {
+                    if (name.equals(qName)) {
+                        return i;
+                    }
+                }
+                else if ((qName.length() == prefix.length() + 1 + name.length()) && qName.startsWith(prefix)
+                                && (qName.charAt(prefix.length()) == ':') && qName.endsWith(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+        public String getType(String uri, String localName) {
+            return (getIndex(uri, localName) != -1) ? "CDATA" : null;
+        }
+
+
+        public String getType(String qName) {
+            return (getIndex(qName) != -1) ? "CDATA" : null;
+        }
+
+
+        public String getValue(String uri, String localName) {
+            final int i = getIndex(uri, localName);
+            return (i != -1) ? parser.getAttributeValue(i) : null;
+        }
+
+
+        public String getValue(String qName) {
+            final int i = getIndex(qName);
+            return (i != -1) ? parser.getAttributeValue(i) : null;
+        }
+    }
+
+
+    public boolean parse(Reader xml, FeedHandler handler) throws IOException {
+        try {
+            final XmlPullParser parser = getParser();
+            parser.setInput(xml);
+            final Attributes attributes = new PullAttributes(parser);
+            final int[] startAndLength = new int[2];
+            int event = parser.getEventType();
+            while ((event != XmlPullParser.END_DOCUMENT) && !handler.isStopped()) {
+                switch (event) {
+                    case XmlPullParser.START_TAG:
+                        handler.startElement(parser.getNamespace(), parser.getName(), parser.getName(), attributes);
+                        break;
+                    case XmlPullParser.END_TAG:
+                        handler.endElement(parser.getNamespace(), parser.getName(), parser.getName());
+                        break;
+                    case XmlPullParser.TEXT:
+                        final char[] text = parser.getTextCharacters(startAndLength);
+                        handler.characters(text, startAndLength[0], startAndLength[1]);
+                        break;
+                }
+                event = parser.next();
+            }
+            handler.endDocument();
+        }
+        catch (XmlPullParserException e) {
+            Log.w(TAG, "could not parse feed data", e);
+            handler.endIncompleteDocument();
+            return false;
+        }
+        catch (SAXException e) {
+            Log.w(TAG, "handler failed", e);
+            return false;
+        }
+        return true;
+    }
+
+
+    private XmlPullParser getParser() throws XmlPullParserException {
+        XmlPullParser parser = parsers.get();
+        if (parser == null) {
+            final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            parser = factory.newPullParser();
+            parsers.set(parser);
+        }
+        return parser;
+    }
+}
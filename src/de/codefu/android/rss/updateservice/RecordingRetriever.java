@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import android.util.Log;
+
+
+
+/**
+ * Passes the work on to another retriever and records every complete
+ * response into a {@link FeedCorpus} on the way, so that it can be replayed
+ * later by the {@link FixtureRetriever}.
+ *
+ * @author mj
+ */
+class RecordingRetriever implements FeedRetriever {
+
+    private final FeedRetriever retriever;
+    private final FeedCorpus corpus;
+
+
+    /**
+     * @param retriever
+     *            the retriever that does the actual work
+     * @param corpus
+     *            the corpus to record into
+     */
+    public RecordingRetriever(FeedRetriever retriever, FeedCorpus corpus) {
+        this.retriever = retriever;
+        this.corpus = corpus;
+    }
+
+
+    public FetchResult retrieve(FetchTask task, BodyConsumer consumer) {
+        final RecordingConsumer recorder = new RecordingConsumer(corpus.getTempFile(task.url), consumer);
+        final FetchResult result = retriever.retrieve(task, recorder);
+        final File bodyFile = corpus.getBodyFile(task.url);
+        if ((result != null) && recorder.complete && !result.truncated) {
+            try {
+                final Properties meta = new Properties();
+                meta.setProperty(FeedCorpus.META_STATUS, Integer.toString(result.status));
+                if (result.etag != null) {
+                    meta.setProperty(FeedCorpus.META_ETAG, result.etag);
+                }
+                if (result.lastModified != null) {
+                    meta.setProperty(FeedCorpus.META_LAST_MODIFIED, result.lastModified);
+                }
+                meta.setProperty(FeedCorpus.META_CONTENT_TYPE, FeedCorpus.BODY_CONTENT_TYPE);
+                bodyFile.delete();
+                if (recorder.file.renameTo(bodyFile)) {
+                    corpus.writeMeta(task.url, meta);
+                    Log.i("RecordingR", "recorded " + task.url);
+                }
+            }
+            catch (IOException e) {
+                Log.w("RecordingR", "could not record " + task.url, e);
+            }
+        }
+        recorder.file.delete();
+        return result;
+    }
+
+
+    /**
+     * Copies the body into a file while the actual consumer reads it.
+     */
+    private static class RecordingConsumer implements BodyConsumer {
+
+        final File file;
+        private final BodyConsumer consumer;
+        /**
+         * True, if the whole body was copied.
+         */
+        boolean complete;
+
+
+        RecordingConsumer(File file, BodyConsumer consumer) {
+            this.file = file;
+            this.consumer = consumer;
+        }
+
+
+        public void consume(FetchResult result, Reader body) throws IOException {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                final TeeReader tee = new TeeReader(body, out);
+                consumer.consume(result, tee);
+                tee.readToEnd();
+                complete = true;
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+
+    /**
+     * A reader that writes everything read through it to a writer.
+     */
+    private static class TeeReader extends FilterReader {
+
+        private final Writer out;
+
+
+        TeeReader(Reader in, Writer out) {
+            super(in);
+            this.out = out;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c != -1) {
+                out.write(c);
+            }
+            return c;
+        }
+
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            final int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                out.write(buffer, offset, n);
+            }
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            final char[] buffer = new char[(int) Math.min(n, 1024)];
+            final int read = read(buffer, 0, buffer.length);
+            return (read > 0) ? read : 0;
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+
+        void readToEnd() throws IOException {
+            final char[] buffer = new char[1024];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // only copy
+            }
+        }
+    }
+}
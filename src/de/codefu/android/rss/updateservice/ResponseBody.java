@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * Runs the body of a response through the steps all retrievers share:
+ * size limit, counting, fingerprint and charset detection.
+ * 
+ * @author mj
+ */
+class ResponseBody {
+
+    /**
+     * Keeps the consumer from closing the body when it is done with it (like
+     * SAX parsers do). The rest of the body is still read for the fingerprint
+     * and, with keep-alive, to reuse the connection; the retriever closes the
+     * real stream afterwards. The retriever also uses it to close its
+     * decompressing streams without closing the connection's stream.
+     */
+    static class UnclosableInputStream extends FilterInputStream {
+
+        UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    private ResponseBody() {
+    }
+
+
+    /**
+     * Hands the body to the consumer. Afterwards the result knows the number
+     * of bytes read and whether the body was cut off; if not, the rest of the
+     * body is read so that the result has the fingerprint of the complete
+     * body.
+     * <p>
+     * The consumer may close the reader it gets; that does not close the
+     * given stream, which stays with the caller.
+     * 
+     * @param task
+     *            the feed the body belongs to
+     * @param result
+     *            the result to fill in
+     * @param in
+     *            the uncompressed body
+     * @param contentType
+     *            the value of the Content-Type header or null
+     * @param consumer
+     *            the object that reads the body
+     * @throws IOException
+     *             if reading the body fails
+     */
+    public static void consume(FetchTask task, FetchResult result, InputStream in, String contentType,
+                    FeedRetriever.BodyConsumer consumer) throws IOException {
+        final LimitedInputStream limitedStream = new LimitedInputStream(in, task.maxBytes);
+        final CountingInputStream countingStream = new CountingInputStream(limitedStream);
+        final FingerprintInputStream fingerprintStream = new FingerprintInputStream(countingStream);
+        consumer.consume(result, CharsetSniffer.openReader(new UnclosableInputStream(fingerprintStream), contentType));
+        if (!limitedStream.isTruncated()) {
+            fingerprintStream.readToEnd();
+        }
+        result.truncated = limitedStream.isTruncated();
+        if (!result.truncated) {
+            result.bodyHash = fingerprintStream.getFingerprint();
+        }
+        result.bytesDecoded = countingStream.getCount();
+    }
+}
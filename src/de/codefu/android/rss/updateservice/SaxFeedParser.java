@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import android.util.Log;
+
+
+
+/**
+ * Parses feeds with a SAX parser.
+ * <p>
+ * Each thread creates its parser once and uses it for all feeds it parses.
+ * A SAX parser can only be stopped by an exception, so the handler throws
+ * one after it was stopped.
+ *
+ * @author mj
+ */
+class SaxFeedParser implements FeedParser {
+
+    /**
+     * Tag for the logger.
+     */
+    private static final String TAG = "SaxFeedParser";
+
+    /**
+     * The parser of each thread.
+     */
+    private final ThreadLocal<XMLReader> readers = new ThreadLocal<XMLReader>();
+
+
+    public boolean parse(Reader xml, FeedHandler handler) throws IOException {
+        try {
+            final XMLReader reader = getReader();
+            reader.setContentHandler(handler);
+            reader.setErrorHandler(handler);
+            try {
+                reader.parse(new InputSource(xml));
+            }
+            finally {
+                reader.setContentHandler(null);
+                reader.setErrorHandler(null);
+            }
+        }
+        catch (ParserConfigurationException e) {
+            Log.w(TAG, "could not create parser", e);
+            return false;
+        }
+        catch (SAXException e) {
+            if (handler.isStopped()) {
+                return endDocument(handler);
+            }
+            Log.w(TAG, "feed data is not well-formed", e);
+            handler.endIncompleteDocument();
+            return false;
+        }
+        return true;
+    }
+
+
+    private XMLReader getReader() throws ParserConfigurationException, SAXException {
+        XMLReader reader = readers.get();
+        if (reader == null) {
+            reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            readers.set(reader);
+        }
+        return reader;
+    }
+
+
+    private boolean endDocument(FeedHandler handler) {
+        try {
+            handler.endDocument();
+            return true;
+        }
+        catch (SAXException e) {
+            Log.w(TAG, "could not end document", e);
+            return false;
+        }
+    }
+}
@@ -18,15 +18,14 @@
  */
 package de.codefu.android.rss.updateservice;
 
+import java.io.IOException;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import de.codefu.android.rss.CursorChangedReceiver;
-import de.codefu.android.rss.db.ItemProvider;
 
 
 
@@ -40,16 +39,20 @@ import de.codefu.android.rss.db.ItemProvider;
  * <ul>
  * <li>One uses the {@link #CONTENT}</li> extra whose value is the data that was
  * downloaded from the RSS feed. </li>
- * <li>The other form uses the {@link #CONTENT_REF} extra whose value is the ID
- * of a row in an auxiliary database table that has the data that was downloaded
- * from the RSS feed.</li>
+ * <li>The other form uses the {@link #CONTENT_FILE} extra whose value is the
+ * name of a file in the {@link PayloadSpool} that has the data that was
+ * downloaded from the RSS feed.</li>
  * </ul>
  * The reason for this intent having two different kinds of behavior is that
  * normally passing the RSS feed data directly is better in terms of CPU cycles.
  * But an intent is passed using RPC and for RPC data there is a maximum size.
  * So whenever feed data is larger than that maximum size {@link ServiceComm}
- * stores it in the database and passes the ID of that database entry using the
- * {@link #CONTENT_REF} extra.
+ * stores it in the spool and passes the name of the file using the
+ * {@link #CONTENT_FILE} extra.
+ * <p>
+ * Each insert intent is registered with {@link PendingPayloads}. If another
+ * insert intent for the same feed is created before the first one was
+ * processed, the data of the first one is dropped without being read.
  * 
  * @author mj
  */
@@ -65,10 +68,40 @@ public class ServiceComm {
      */
     private static final String CONTENT = "content";
     /**
-     * The key for the extra that has the ID of the row in the auxiliary table
-     * where the RSS feed data is stored.
+     * The key for the extra that has the name of the file in the
+     * {@link PayloadSpool} where the RSS feed data is stored.
+     */
+    private static final String CONTENT_FILE = "contentfile";
+    /**
+     * The key for the extra that has the ETag of the response.
+     */
+    private static final String ETAG = "etag";
+    /**
+     * The key for the extra that has the Last-Modified header of the response.
+     */
+    private static final String LAST_MODIFIED = "lastmodified";
+    /**
+     * The key for the extra that has the fingerprint of the data.
+     */
+    private static final String BODY_HASH = "bodyhash";
+    /**
+     * The key for the extra that has the statistics of the poll so far.
+     */
+    private static final String STATS = "stats";
+    /**
+     * The key for the extra that has the number the {@link PendingPayloads}
+     * registry gave the data.
+     */
+    private static final String PAYLOAD_NUMBER = "payloadnumber";
+    /**
+     * The key for the extra that has the parser engine for the data.
      */
-    private static final String CONTENT_REF = "contentid";
+    private static final String PARSER = "parser";
+    /**
+     * The key for the extra that tells whether the data was cut off at the
+     * feed's size limit.
+     */
+    private static final String TRUNCATED = "truncated";
 
 
     /**
@@ -84,13 +117,48 @@ public class ServiceComm {
          * The ID of the feed for which to insert the data.
          */
         public long feedId;
+        /**
+         * The ETag the server sent with the data.
+         */
+        public String etag;
+        /**
+         * The Last-Modified header the server sent with the data.
+         */
+        public String lastModified;
+        /**
+         * The fingerprint of the data.
+         */
+        public String bodyHash;
+        /**
+         * The statistics of the poll the data comes from.
+         */
+        FetchStats stats;
+        /**
+         * True, if newer data of the feed is waiting and this data was
+         * dropped. {@link #content} is null then.
+         */
+        public boolean superseded;
+        /**
+         * True, if the data was cut off at the feed's size limit.
+         */
+        public boolean truncated;
+        /**
+         * The engine that parses the data, one of the PARSER_ constants in
+         * {@link de.codefu.android.rss.db.FeedProvider}.
+         */
+        public int parser;
     }
 
 
     /**
-     * The maximum size of data that can be stored in an intent.
+     * The maximum number of characters of feed data that are stored in an
+     * intent. Intents pass through the Binder, whose transaction buffer is
+     * 1 MB per process and is shared by all transactions in flight; a
+     * transaction that does not fit fails. A string takes two bytes per
+     * character in a parcel, so this keeps an insert intent at about 100 KB,
+     * well below the limit even if several are queued. Larger data is put in
+     * the {@link PayloadSpool}.
      */
-    // TODO: Get correct max size
     private static final int MAX_RPC_SIZE = 50 * 1024;
     /**
      * Name of a broadcast that is sent when polling starts.
@@ -100,37 +168,71 @@ public class ServiceComm {
      * Name of a broadcast that is sent when there are problems during polling.
      */
     public static final String POLLING_PROBLEM = "pollingproblem";
+    /**
+     * The key for the extra of the {@link #POLLING_PROBLEM} broadcast that
+     * tells what went wrong.
+     */
+    public static final String PROBLEM = "problem";
+    /**
+     * Problem: the feed could not be downloaded.
+     */
+    public static final int PROBLEM_DOWNLOAD = 0;
+    /**
+     * Problem: the feed was larger than its size limit and was only processed
+     * partially.
+     */
+    public static final int PROBLEM_TOO_LARGE = 1;
+    /**
+     * Problem: the feed was not well-formed XML and was only processed up to
+     * the error.
+     */
+    public static final int PROBLEM_MALFORMED = 2;
 
 
     /**
      * Creates an insert intent.
      * <p>
      * If the data given is too large for the RPC system (larger than
-     * {@link #MAX_RPC_SIZE}) the data is stored in a database and the ID of
-     * that data in the database is stored in the intent. Otherwise the data
+     * {@link #MAX_RPC_SIZE}) the data is stored in the {@link PayloadSpool}
+     * and the name of the file is stored in the intent. Otherwise the data
      * itself is stored in the intent.
      * 
      * @param c
      *            the context to create the intent for
-     * @param feedId
-     *            the ID of the feed whose data is in body
-     * @param body
-     *            the data of the RSS feed
-     * @return an intent object ready for sending
+     * @param task
+     *            the task of the poll that got the data
+     * @param result
+     *            the data of the RSS feed and the validators the server sent
+     *            with it
+     * @param stats
+     *            the statistics of the poll so far
+     * @return an intent object ready for sending or null if the data could
+     *         not be stored in the spool
      */
-    public static Intent createInsertIntent(Context c, long feedId, String body) {
+    static Intent createInsertIntent(Context c, FetchTask task, FetchResult result, FetchStats stats) {
+        final long feedId = task.feedId;
         final Intent i = new Intent(c, InsertService.class);
+        final String body = result.body;
         if (body.length() > MAX_RPC_SIZE) {
-            final Uri uri = ItemProvider.CONTENT_URI_AUX;
-            final ContentValues cv = new ContentValues();
-            cv.put("content", body);
-            final Uri id = c.getContentResolver().insert(uri, cv);
-            i.putExtra(CONTENT_REF, id);
+            try {
+                i.putExtra(CONTENT_FILE, new PayloadSpool(c).write(feedId, body));
+            }
+            catch (IOException e) {
+                Log.e("ServComm", "Could not spool data of feed " + feedId, e);
+                return null;
+            }
         }
         else {
             i.putExtra(CONTENT, body);
         }
         i.putExtra(FEED_ID, feedId);
+        i.putExtra(ETAG, result.etag);
+        i.putExtra(LAST_MODIFIED, result.lastModified);
+        i.putExtra(BODY_HASH, result.bodyHash);
+        i.putExtra(STATS, stats.asContentValues());
+        i.putExtra(PARSER, task.parser);
+        i.putExtra(TRUNCATED, result.truncated);
+        i.putExtra(PAYLOAD_NUMBER, PendingPayloads.getInstance().register(feedId));
         Log.d("ServComm", "Created " + i);
         return i;
     }
@@ -138,12 +240,15 @@ public class ServiceComm {
 
     /**
      * Takes an insert intent created with
-     * {@link #createInsertIntent(Context, long, String)} and retrieves the data
+     * {@link #createInsertIntent(Context, FetchTask, FetchResult, FetchStats)} and retrieves the data
      * in it.
      * <p>
+     * If newer data for the same feed was registered in the meantime, the data
+     * is not read and {@link IntentContent#superseded} is set.
+     * <p>
      * The handling of the data in the intent (reference or directly attached
      * data) is totally transparent. The caller also does not have to care about
-     * the maintenance of the auxiliary table.
+     * the maintenance of the spool.
      * 
      * @param c
      *            the content to use for a possible database access
@@ -154,23 +259,27 @@ public class ServiceComm {
     public static IntentContent getInsertContent(Context c, Intent intent) {
         final IntentContent ic = new IntentContent();
         final Bundle extras = intent.getExtras();
-        final Object contentRefO = extras.get(CONTENT_REF);
+        final String contentFile = extras.getString(CONTENT_FILE);
 
         ic.feedId = extras.getLong(FEED_ID);
+        ic.etag = extras.getString(ETAG);
+        ic.lastModified = extras.getString(LAST_MODIFIED);
+        ic.bodyHash = extras.getString(BODY_HASH);
+        ic.parser = extras.getInt(PARSER);
+        ic.truncated = extras.getBoolean(TRUNCATED);
+        final ContentValues stats = extras.getParcelable(STATS);
+        ic.stats = (stats != null) ? FetchStats.fromContentValues(stats) : new FetchStats(ic.feedId);
 
-        if (contentRefO != null) {
-            if (contentRefO instanceof Uri) {
-                final Uri contentRef = (Uri) contentRefO;
-                final Cursor cursor = c.getContentResolver().query(contentRef, null, null, null, null);
-                if (cursor != null) {
-                    if (cursor.moveToFirst()) {
-                        ic.content = cursor.getString(cursor.getColumnIndex(ItemProvider.AUX_COL_CONTENT));
-                    }
-                    cursor.close();
-                }
-                c.getContentResolver().delete(contentRef, null, null);
+        if (!PendingPayloads.getInstance().claim(ic.feedId, extras.getLong(PAYLOAD_NUMBER))) {
+            ic.superseded = true;
+            if (contentFile != null) {
+                new PayloadSpool(c).discard(contentFile);
             }
-            Log.i("ServComm", "Read intent for feed " + ic.feedId + " from aux table");
+            Log.i("ServComm", "Dropped superseded intent for feed " + ic.feedId);
+        }
+        else if (contentFile != null) {
+            ic.content = new PayloadSpool(c).take(contentFile);
+            Log.i("ServComm", "Read intent for feed " + ic.feedId + " from spool");
         }
         else {
             ic.content = extras.getString(CONTENT);
@@ -198,6 +307,23 @@ public class ServiceComm {
     }
 
 
+    /**
+     * Sends a broadcast to announce that the items of the given feeds have
+     * changed. Receivers that show other feeds can ignore it.
+     * 
+     * @param context
+     *            the content to use for sending the intent
+     * @param feedIds
+     *            the IDs of the feeds whose items changed
+     */
+    public static void sendDataChangedBroadcast(Context context, long[] feedIds) {
+        final Intent intent = new Intent(CursorChangedReceiver.DATA_CHANGED);
+        intent.setPackage(CursorChangedReceiver.PACKAGE_NAME);
+        intent.putExtra(CursorChangedReceiver.FEED_IDS, feedIds);
+        context.sendBroadcast(intent);
+    }
+
+
     /**
      * Sends a broadcast to announce that polling has stated.
      * 
@@ -219,13 +345,50 @@ public class ServiceComm {
      *            the ID of the feed that was attempted to poll
      */
     public static void sendPollingProblemBroadcast(Context context, long feedId) {
+        sendPollingProblemBroadcast(context, feedId, PROBLEM_DOWNLOAD);
+    }
+
+
+    /**
+     * Sends a broadcast to announce that there was a problem of the given kind
+     * while polling a given feed.
+     * 
+     * @param context
+     *            the content to use for sending the intent
+     * @param feedId
+     *            the ID of the feed that was attempted to poll
+     * @param problem
+     *            what went wrong, one of the PROBLEM_ constants
+     */
+    public static void sendPollingProblemBroadcast(Context context, long feedId, int problem) {
         final Intent intent = new Intent(POLLING_PROBLEM);
         intent.setPackage(CursorChangedReceiver.PACKAGE_NAME);
         intent.putExtra(FEED_ID, feedId);
+        intent.putExtra(PROBLEM, problem);
         context.sendBroadcast(intent);
     }
 
 
+    /**
+     * Sends a {@link #PROBLEM_MALFORMED} broadcast if the data of a poll was
+     * not well-formed. Data that was cut off at the size limit is never
+     * well-formed, but that was already announced as
+     * {@link #PROBLEM_TOO_LARGE}.
+     * 
+     * @param context
+     *            the content to use for sending the intent
+     * @param stats
+     *            the statistics of the poll
+     * @param truncated
+     *            true, if the data was cut off at the feed's size limit
+     */
+    static void sendMalformedBroadcast(Context context, FetchStats stats, boolean truncated) {
+        if (stats.malformed && !truncated) {
+            sendPollingProblemBroadcast(context, stats.feedId, PROBLEM_MALFORMED);
+        }
+    }
+
+
     public static void sendPollIntent(Context context, long feedId) {
         final Intent i = new Intent(context, UpdateService.class);
         i.putExtra(ServiceComm.FEED_ID, feedId);
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+
+
+/**
+ * The hints a feed gives about how often it changes: the RSS elements
+ * <code>ttl</code>, <code>skipHours</code> and <code>skipDays</code> and the
+ * syndication module's <code>updatePeriod</code> and
+ * <code>updateFrequency</code>.
+ * <p>
+ * The {@link FeedHandler} collects them while parsing. The
+ * {@link AutoPollService} uses the minimum interval as a lower bound for the
+ * feed's poll interval and does not poll in the skipped hours and days.
+ * 
+ * @author mj
+ */
+class UpdateHints {
+
+    /**
+     * The upper bound for the minimum interval, so that a wrong hint cannot
+     * silence a feed for weeks.
+     */
+    static final int MAX_INTERVAL_MIN = 24 * 60;
+
+    private static final int HOURLY_MIN = 60;
+
+    private static final int DAILY_MIN = 24 * HOURLY_MIN;
+
+    private static final String[] PERIOD_NAMES = {"hourly", "daily", "weekly", "monthly", "yearly"};
+
+    private static final int[] PERIOD_MINUTES = {HOURLY_MIN, DAILY_MIN, 7 * DAILY_MIN, 30 * DAILY_MIN,
+                    365 * DAILY_MIN};
+
+    /**
+     * The day names of skipDays, in the order of {@link Calendar#SUNDAY} to
+     * {@link Calendar#SATURDAY}.
+     */
+    private static final String[] DAY_NAMES = {"sunday", "monday", "tuesday", "wednesday", "thursday", "friday",
+                    "saturday"};
+
+    private static final int ALL_HOURS = (1 << 24) - 1;
+
+    private static final int ALL_DAYS = (1 << 7) - 1;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private int ttlMin;
+    private int periodMin;
+    private int frequency;
+    private int skipHours;
+    private int skipDays;
+
+
+    /**
+     * @param value
+     *            the content of <code>ttl</code>, the minutes a feed may be
+     *            cached
+     */
+    void setTtl(String value) {
+        ttlMin = Math.max(0, parseInt(value));
+    }
+
+
+    /**
+     * @param value
+     *            the content of <code>sy:updatePeriod</code>
+     */
+    void setUpdatePeriod(String value) {
+        for (int i = 0; i < PERIOD_NAMES.length; i++) {
+            if (PERIOD_NAMES[i].equalsIgnoreCase(value)) {
+                periodMin = PERIOD_MINUTES[i];
+            }
+        }
+    }
+
+
+    /**
+     * @param value
+     *            the content of <code>sy:updateFrequency</code>, the number
+     *            of updates per period
+     */
+    void setUpdateFrequency(String value) {
+        frequency = Math.max(0, parseInt(value));
+    }
+
+
+    /**
+     * @param value
+     *            the content of an <code>hour</code> in
+     *            <code>skipHours</code>, 0 to 23 (UTC)
+     */
+    void addSkipHour(String value) {
+        final int hour = parseInt(value);
+        if ((hour >= 0) && (hour <= 24)) {
+            // Some feeds write 24 for midnight.
+            skipHours |= 1 << (hour % 24);
+        }
+    }
+
+
+    /**
+     * @param value
+     *            the content of a <code>day</code> in <code>skipDays</code>,
+     *            e.g. "Saturday"
+     */
+    void addSkipDay(String value) {
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equalsIgnoreCase(value)) {
+                skipDays |= 1 << i;
+            }
+        }
+    }
+
+
+    /**
+     * @return the minimum number of minutes between two polls the feed asks
+     *         for, at most {@link #MAX_INTERVAL_MIN}; 0 if it gives no hint
+     */
+    int getMinIntervalMin() {
+        int min = ttlMin;
+        if ((periodMin > 0) || (frequency > 0)) {
+            // The syndication module's defaults are daily and 1.
+            final int period = (periodMin > 0) ? periodMin : DAILY_MIN;
+            min = Math.max(min, period / Math.max(1, frequency));
+        }
+        return Math.min(min, MAX_INTERVAL_MIN);
+    }
+
+
+    /**
+     * @return the hours in which the feed is not polled, bit 0 for 0:00 to
+     *         0:59 UTC
+     */
+    int getSkipHours() {
+        return skipHours;
+    }
+
+
+    /**
+     * @return the days on which the feed is not polled, bit 0 for Sunday
+     */
+    int getSkipDays() {
+        return skipDays;
+    }
+
+
+    /**
+     * Moves a poll time out of the hours and days the feed asks to be
+     * skipped. If a feed skips every hour or every day, its hints are
+     * ignored.
+     * 
+     * @param timeMs
+     *            the time the feed would be polled
+     * @param skipHours
+     *            the hours to skip as returned by {@link #getSkipHours()}
+     * @param skipDays
+     *            the days to skip as returned by {@link #getSkipDays()}
+     * @return the given time or the beginning of the first hour after it in
+     *         which the feed may be polled
+     */
+    static long getNextAllowedMs(long timeMs, int skipHours, int skipDays) {
+        if (((skipHours == 0) && (skipDays == 0)) || ((skipHours & ALL_HOURS) == ALL_HOURS)
+                        || ((skipDays & ALL_DAYS) == ALL_DAYS)) {
+            return timeMs;
+        }
+        final Calendar cal = Calendar.getInstance(UTC);
+        cal.setTimeInMillis(timeMs);
+        if (!isSkipped(cal, skipHours, skipDays)) {
+            return timeMs;
+        }
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        do {
+            cal.add(Calendar.HOUR_OF_DAY, 1);
+        }
+        while (isSkipped(cal, skipHours, skipDays));
+        return cal.getTimeInMillis();
+    }
+
+
+    private static boolean isSkipped(Calendar cal, int skipHours, int skipDays) {
+        final int hourBit = 1 << cal.get(Calendar.HOUR_OF_DAY);
+        final int dayBit = 1 << (cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY);
+        return ((skipHours & hourBit) != 0) || ((skipDays & dayBit) != 0);
+    }
+
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
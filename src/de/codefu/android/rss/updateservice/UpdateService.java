@@ -18,13 +18,21 @@
  */
 package de.codefu.android.rss.updateservice;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 import android.app.IntentService;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import de.codefu.android.rss.MainPreferences;
 import de.codefu.android.rss.db.FeedProvider;
 
 
@@ -47,6 +55,41 @@ public class UpdateService extends IntentService {
      * The connection timeout in milliseconds.
      */
     private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    /**
+     * How long in milliseconds the server may take to start answering after
+     * the connection was established.
+     */
+    private static final int FIRST_BYTE_TIMEOUT_MS = 30 * 1000;
+    /**
+     * The name of the directory with the recorded responses.
+     */
+    private static final String CORPUS_DIR = "corpus";
+    /**
+     * The maximum number of feeds the {@link IngestPipeline} parses at the
+     * same time.
+     */
+    private static final int MAX_PARSE_THREADS = 2;
+
+
+    /**
+     * The statistics of the polls of the current intent. Written in one batch
+     * when all polls are done.
+     */
+    private final List<ContentValues> pollStats = new ArrayList<ContentValues>();
+    /**
+     * The pipeline that parses and stores the feeds of the current intent, or
+     * null if the feeds are ingested differently.
+     */
+    private IngestPipeline pipeline;
+    /**
+     * Announces the feeds that got new items during the current intent.
+     */
+    private DataChangedNotifier notifier;
+    /**
+     * The number of known items in a row after which parsing a feed stops, or
+     * 0.
+     */
+    private int earlyStopRun;
 
 
     public UpdateService() {
@@ -54,6 +97,13 @@ public class UpdateService extends IntentService {
     }
 
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ConnectionTracker.configurePool(MainPreferences.getMaxParallelFetchesPerHost(this));
+    }
+
+
     @Override
     protected void onHandleIntent(Intent intent) {
         long feedId = FeedProvider.ALL_FEEDS;
@@ -64,36 +114,38 @@ public class UpdateService extends IntentService {
 
         ServiceComm.sendPollingStartedBroadcast(this);
 
+        notifier = new DataChangedNotifier(this);
+        earlyStopRun = MainPreferences.getEarlyStopRun(this);
+        startPipeline();
+        final long defaultMaxBytes = MainPreferences.getMaxFeedBytes(this);
+        final int defaultParser = MainPreferences.getParser(this);
         if (feedId == FeedProvider.ALL_FEEDS) {
+            final List<FetchTask> tasks = new ArrayList<FetchTask>();
             final Uri uri = FeedProvider.CONTENT_URI;
             final Cursor feeds = getContentResolver().query(uri, null, null, null, null);
             if (feeds != null) {
-                final int ciLPDate = feeds.getColumnIndex(FeedProvider.FEEDS_COL_LASTPOLLDATE);
-                final int ciUrl = feeds.getColumnIndex(FeedProvider.FEEDS_COL_URL);
-                final int ciId = feeds.getColumnIndex("_id");
                 while (feeds.moveToNext()) {
-                    final long id = feeds.getLong(ciId);
-                    final String urlStr = feeds.getString(ciUrl);
-                    final long lastPollDateMs = feeds.getLong(ciLPDate);
-                    Log.i("UpdateService", "Polling " + id + " - " + urlStr);
-                    poll(id, urlStr, lastPollDateMs);
+                    tasks.add(createTask(feeds, defaultMaxBytes, defaultParser));
                 }
                 feeds.close();
             }
+            pollAll(tasks);
         }
         else {
             final Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
             final Cursor feed = getContentResolver().query(uri, null, null, null, null);
             if (feed != null) {
                 if (feed.moveToFirst()) {
-                    final String urlStr = feed.getString(feed.getColumnIndex(FeedProvider.FEEDS_COL_URL));
-                    final long lastPollDateMs = feed.getLong(feed.getColumnIndex(FeedProvider.FEEDS_COL_LASTPOLLDATE));
-                    poll(feedId, urlStr, lastPollDateMs);
+                    poll(createTask(feed, defaultMaxBytes, defaultParser), createRetriever(createConnectionTracker()));
                 }
                 feed.close();
             }
         }
 
+        finishPipeline();
+        writeStats();
+        notifier.flush();
+        Log.i("UpdateService", notifier.getSummary());
         WakeLockHolder.getInstance().release(this);
     }
 
@@ -105,32 +157,314 @@ public class UpdateService extends IntentService {
 
 
     /**
-     * Uses {@link UrlHttpRetriever} to download feed data and sends that data
-     * to the {@link InsertService}.
+     * Creates the task for polling the feed the cursor is positioned at.
      * 
-     * @param feedId
-     *            the ID of the feed to poll
-     * @param urlStr
-     *            the URL of the feed's data
-     * @param lastPollDateMs
+     * @param c
+     *            the cursor positioned at a feed
+     * @param defaultMaxBytes
+     *            the size limit to use if the feed has none of its own
+     * @param defaultParser
+     *            the parser engine to use if the feed has none of its own
+     * @return the task
      */
-    private void poll(final long feedId, final String urlStr, long lastPollDateMs) {
-        if (urlStr == null) {
-            return;
+    private FetchTask createTask(Cursor c, long defaultMaxBytes, int defaultParser) {
+        final long id = c.getLong(c.getColumnIndex("_id"));
+        final String urlStr = c.getString(c.getColumnIndex(FeedProvider.FEEDS_COL_URL));
+        final long lastPollDateMs = c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_LASTPOLLDATE));
+        final String etag = c.getString(c.getColumnIndex(FeedProvider.FEEDS_COL_ETAG));
+        final String lastModified = c.getString(c.getColumnIndex(FeedProvider.FEEDS_COL_LASTMODIFIED));
+        long maxBytes = c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_MAXBYTES));
+        if (maxBytes <= 0) {
+            maxBytes = defaultMaxBytes;
         }
+        final String bodyHash = c.getString(c.getColumnIndex(FeedProvider.FEEDS_COL_BODYHASH));
+        final int failures = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_FAILURES));
+        final long nextRetryMs = c.getLong(c.getColumnIndex(FeedProvider.FEEDS_COL_NEXTRETRY));
+        final int breaker = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_BREAKER));
+        int parser = c.getInt(c.getColumnIndex(FeedProvider.FEEDS_COL_PARSER));
+        if (parser == FeedProvider.PARSER_DEFAULT) {
+            parser = defaultParser;
+        }
+        return new FetchTask(id, urlStr, lastPollDateMs, etag, lastModified, maxBytes, bodyHash, failures,
+                        nextRetryMs, breaker, parser);
+    }
+
+
+    /**
+     * Polls all given feeds using a {@link FetchEngine} so that several feeds
+     * are downloaded at the same time.
+     * 
+     * @param tasks
+     *            the feeds to poll
+     */
+    private void pollAll(List<FetchTask> tasks) {
+        final int maxParallel = MainPreferences.getMaxParallelFetches(this);
+        final int maxPerHost = MainPreferences.getMaxParallelFetchesPerHost(this);
+        final ConnectionTracker connections = createConnectionTracker();
+        final FeedRetriever retriever = createRetriever(connections);
+        final FetchEngine engine = new FetchEngine(maxParallel, maxPerHost, new FetchEngine.Worker() {
 
-        final UrlHttpRetriever retriever = new UrlHttpRetriever();
-        final String responseBody = retriever.retrieveHttpContent(urlStr, lastPollDateMs, CONNECT_TIMEOUT_MS,
+            public void fetch(FetchTask task) {
+                Log.i("UpdateService", "Polling " + task.feedId + " - " + task.url);
+                poll(task, retriever);
+            }
+        });
+        engine.run(tasks);
+        Log.i("UpdateService", connections.getSummary());
+        Log.i("UpdateService", DownloadWatchdog.getInstance().getSummary());
+    }
+
+
+    /**
+     * @return a tracker for the connections of a new refresh cycle, set up
+     *         according to the preferences
+     */
+    private ConnectionTracker createConnectionTracker() {
+        return new ConnectionTracker(MainPreferences.getKeepAlive(this),
+                        MainPreferences.getMaxParallelFetchesPerHost(this));
+    }
+
+
+    /**
+     * Creates the retriever for a refresh cycle. Usually feeds are downloaded
+     * from their servers. For measurements the preferences can switch to
+     * replaying feeds from the corpus of recorded responses or to recording
+     * the downloaded feeds into that corpus.
+     * 
+     * @param connections
+     *            the tracker of the refresh cycle
+     * @return the retriever
+     */
+    private FeedRetriever createRetriever(ConnectionTracker connections) {
+        final String backend = MainPreferences.getFetchBackend(this);
+        final FeedCorpus corpus = new FeedCorpus(getDir(CORPUS_DIR, MODE_PRIVATE));
+        if (MainPreferences.BACKEND_REPLAY.equals(backend)) {
+            return new FixtureRetriever(corpus);
+        }
+        final FeedRetriever http = new UrlHttpRetriever(connections, CONNECT_TIMEOUT_MS, FIRST_BYTE_TIMEOUT_MS,
                         DOWNLOAD_TIMEOUT_MS);
-        if (responseBody != null) {
-            final Intent i = ServiceComm.createInsertIntent(this, feedId, responseBody);
-            Log.i("UpdateService", "starting Insert service for feed " + feedId);
-            WakeLockHolder.getInstance().acquire(this);
-            startService(i);
+        if (MainPreferences.BACKEND_RECORD.equals(backend)) {
+            return new RecordingRetriever(http, corpus);
+        }
+        return http;
+    }
+
+
+    /**
+     * Uses a {@link FeedRetriever} to get feed data.
+     * <p>
+     * Depending on the preferences, the data is either parsed and stored while
+     * it is downloaded or downloaded completely and sent to the
+     * {@link InsertService} or the {@link IngestPipeline}.
+     * <p>
+     * If the data has the same fingerprint as the data processed the last
+     * time, it is not stored (again) and the feed's counter of unchanged skips
+     * is incremented instead.
+     * <p>
+     * Feeds that are backing off after failures (see {@link FeedBackoff}) are
+     * not polled. The outcome of the poll updates the feed's backoff state.
+     * <p>
+     * The timings and counters of the poll are collected in a
+     * {@link FetchStats} and written with {@link #writeStats()}.
+     * <p>
+     * May be called from several threads at the same time.
+     * 
+     * @param task
+     *            the feed to poll
+     * @param retriever
+     *            the retriever of the current refresh cycle
+     */
+    private void poll(final FetchTask task, FeedRetriever retriever) {
+        if (task.url == null) {
+            return;
+        }
+        if (FeedBackoff.isBackingOff(task, System.currentTimeMillis())) {
+            Log.i("UpdateService", "backing off until " + new Date(task.nextRetryMs) + ": " + task.url);
+            return;
+        }
+        if (task.breaker == FeedProvider.BREAKER_OPEN) {
+            updateFeed(task.feedId, FeedBackoff.onProbe());
+        }
+
+        final FetchStats stats = new FetchStats(task.feedId);
+        final FetchResult result;
+        FeedInserter inserter = null;
+        if ((pipeline != null) || MainPreferences.INGEST_BUFFERED.equals(MainPreferences.getIngestMode(this))) {
+            result = retriever.retrieve(task, FeedRetriever.BUFFERING);
         }
         else {
-            ServiceComm.sendPollingProblemBroadcast(this, feedId);
+            inserter = new FeedInserter(getContentResolver(), stats, FeedInserter.getParser(task.parser));
+            inserter.setEarlyStopRun(earlyStopRun);
+            result = retriever.retrieve(task, createStreamingConsumer(task, inserter));
+        }
+        if (result == null) {
+            if (inserter != null) {
+                inserter.discard(task.feedId);
+            }
+            updateFeed(task.feedId, FeedBackoff.onFailure(task, System.currentTimeMillis()));
+            ServiceComm.sendPollingProblemBroadcast(this, task.feedId);
+            addStats(stats);
+            return;
         }
+        stats.setFetchResult(result);
+
+        final boolean unchanged = (result.bodyHash != null) && result.bodyHash.equals(task.bodyHash);
+        recordFetch(task.feedId, result, unchanged);
+        if (result.truncated) {
+            ServiceComm.sendPollingProblemBroadcast(this, task.feedId, ServiceComm.PROBLEM_TOO_LARGE);
+        }
+        if (unchanged) {
+            Log.i("UpdateService", "unchanged: " + task.url);
+            if (result.ingested) {
+                // The parsed items were only held in memory.
+                inserter.discard(task.feedId);
+            }
+        }
+        else if (result.ingested) {
+            inserter.commit(task.feedId, result.etag, result.lastModified, result.bodyHash);
+            notifier.feedChanged(task.feedId);
+            ServiceComm.sendMalformedBroadcast(this, stats, result.truncated);
+        }
+        else if ((result.body != null) && (pipeline != null)) {
+            try {
+                // Blocks while the pipeline is busy.
+                pipeline.submit(new IngestPipeline.Job(task, result, stats));
+                // The pipeline's listener stores the statistics.
+                return;
+            }
+            catch (InterruptedException e) {
+                Log.w("UpdateService", "interrupted while handing over feed " + task.feedId);
+            }
+        }
+        else if (result.body != null) {
+            final Intent i = ServiceComm.createInsertIntent(this, task, result, stats);
+            if (i != null) {
+                Log.i("UpdateService", "starting Insert service for feed " + task.feedId);
+                WakeLockHolder.getInstance().acquire(this);
+                startService(i);
+                // The InsertService stores the statistics when it is done.
+                return;
+            }
+        }
+        addStats(stats);
+    }
+
+
+    /**
+     * Starts the {@link IngestPipeline} if the preferences ask for it.
+     */
+    private void startPipeline() {
+        if (!MainPreferences.INGEST_PIPELINE.equals(MainPreferences.getIngestMode(this))) {
+            pipeline = null;
+            return;
+        }
+        final int parseThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARSE_THREADS);
+        pipeline = new IngestPipeline(getContentResolver(), parseThreads, new IngestPipeline.Listener() {
+
+            public void ingested(IngestPipeline.Job job, boolean stored) {
+                addStats(job.stats);
+                if (stored) {
+                    notifier.feedChanged(job.task.feedId);
+                    ServiceComm.sendMalformedBroadcast(UpdateService.this, job.stats, job.result.truncated);
+                }
+            }
+        });
+        pipeline.setEarlyStopRun(earlyStopRun);
+        pipeline.start();
+    }
+
+
+    /**
+     * Waits until the {@link IngestPipeline} is done with all feeds.
+     */
+    private void finishPipeline() {
+        if (pipeline == null) {
+            return;
+        }
+        try {
+            pipeline.finish();
+        }
+        catch (InterruptedException e) {
+            Log.w("UpdateService", "interrupted while waiting for the pipeline");
+        }
+        Log.i("UpdateService", pipeline.getSummary());
+        pipeline = null;
+    }
+
+
+    private synchronized void addStats(FetchStats stats) {
+        pollStats.add(stats.asContentValues());
+    }
+
+
+    /**
+     * Stores the statistics of the polls collected so far in one batch.
+     */
+    private synchronized void writeStats() {
+        if (!pollStats.isEmpty()) {
+            final ContentValues[] rows = pollStats.toArray(new ContentValues[pollStats.size()]);
+            getContentResolver().bulkInsert(FeedProvider.CONTENT_URI_STATS, rows);
+            pollStats.clear();
+        }
+    }
+
+
+    /**
+     * @param task
+     *            the feed to poll
+     * @param inserter
+     *            the inserter that collects the items
+     * @return a consumer that parses the feed data while it is downloaded
+     */
+    private FeedRetriever.BodyConsumer createStreamingConsumer(final FetchTask task, final FeedInserter inserter) {
+        return new FeedRetriever.BodyConsumer() {
+
+            public void consume(FetchResult result, Reader body) throws IOException {
+                result.ingested = inserter.parse(task.feedId, body);
+            }
+        };
+    }
+
+
+    /**
+     * Stores the transfer sizes and the number of redirects of a download
+     * with the feed. If the data has not changed, the last poll date is set,
+     * too, because that data is not processed any further. Unchanged data is
+     * counted. The feed's backoff is reset because the download succeeded.
+     * <p>
+     * If the feed moved permanently, its URL is changed to the new location
+     * so that further polls go there directly.
+     * 
+     * @param feedId
+     *            the ID of the feed
+     * @param result
+     *            the result of the download
+     * @param unchanged
+     *            true, if the data has the same fingerprint as the last time
+     */
+    private void recordFetch(long feedId, FetchResult result, boolean unchanged) {
+        final ContentValues cv = FeedBackoff.onSuccess();
+        cv.put(FeedProvider.FEEDS_COL_BYTESRECEIVED, result.bytesReceived);
+        cv.put(FeedProvider.FEEDS_COL_BYTESDECODED, result.bytesDecoded);
+        cv.put(FeedProvider.FEEDS_COL_REDIRECTS, result.redirects);
+        if (result.movedTo != null) {
+            Log.i("UpdateService", "feed " + feedId + " moved permanently to " + result.movedTo);
+            cv.put(FeedProvider.FEEDS_COL_URL, result.movedTo);
+        }
+        if (result.isNotModified() || unchanged) {
+            cv.put(FeedProvider.FEEDS_COL_LASTPOLLDATE, System.currentTimeMillis());
+        }
+        Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
+        if (unchanged) {
+            uri = uri.buildUpon().encodedFragment(FeedProvider.UNCHANGED_FRAGMENT).build();
+        }
+        getContentResolver().update(uri, cv, null, null);
+    }
+
+
+    private void updateFeed(long feedId, ContentValues cv) {
+        final Uri uri = ContentUris.withAppendedId(FeedProvider.CONTENT_URI, feedId);
+        getContentResolver().update(uri, cv, null, null);
     }
 
 }
@@ -18,12 +18,17 @@
  */
 package de.codefu.android.rss.updateservice;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -33,136 +38,367 @@ import android.util.Log;
  * 
  * @author mj
  */
-class UrlHttpRetriever {
+class UrlHttpRetriever implements FeedRetriever {
 
-    private static final String DEFAULT_XML_TEXT_ENCODING = "UTF-8";
+    /**
+     * The maximum number of redirects that are followed for one feed.
+     */
+    private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
 
-    private static final String ENCODING_PREFIX = "encoding=\"";
+    /**
+     * Keeps track of the connections of the current refresh cycle.
+     */
+    private final ConnectionTracker connections;
+    /**
+     * The timeout in milliseconds after which to terminate a connection
+     * attempt.
+     */
+    private final int timeoutMs;
+    /**
+     * How long the server may take to start answering in milliseconds.
+     */
+    private final int firstByteTimeoutMs;
+    /**
+     * How long a download may last in milliseconds.
+     */
+    private final int maxTransferTimeMs;
 
 
     /**
-     * Retrieves a remote resource given by the URL.
+     * Creates a retriever that keeps connections alive if the tracker says
+     * so.
      * 
-     * @param urlStr
-     *            the URL of the remote resource to download
-     * @param lastPollDateMs
-     *            last poll date in milliseconds (see
-     *            {@link System#currentTimeMillis()})
+     * @param connections
+     *            the tracker of the current refresh cycle
      * @param timeoutMs
-     *            the timeout in milliseconds after which to terminate the
-     *            download attempt
+     *            the timeout in milliseconds after which to terminate a
+     *            connection attempt
+     * @param firstByteTimeoutMs
+     *            how long the server may take to start answering in
+     *            milliseconds
      * @param maxTransferTimeMs
      *            how long a download may last in milliseconds
-     * @return what could be downloaded at the given URL as a String, or null, if an error occurred
      */
-    public String retrieveHttpContent(String urlStr, long lastPollDateMs, int timeoutMs, int maxTransferTimeMs) {
+    public UrlHttpRetriever(ConnectionTracker connections, int timeoutMs, int firstByteTimeoutMs,
+                    int maxTransferTimeMs) {
+        this.connections = connections;
+        this.timeoutMs = timeoutMs;
+        this.firstByteTimeoutMs = firstByteTimeoutMs;
+        this.maxTransferTimeMs = maxTransferTimeMs;
+    }
+
+
+    /**
+     * Retrieves a remote resource given by the task's URL and hands the body
+     * to the consumer while it is downloaded.
+     * <p>
+     * Redirects are followed here instead of by {@link HttpURLConnection} so
+     * that they can be counted and so that permanent ones (301 and 308) can
+     * be told apart from temporary ones. As long as all redirects so far were
+     * permanent, the result tells where the feed moved to.
+     * <p>
+     * See {@link #request(FetchTask, URL, FetchResult, BodyConsumer)} for how
+     * each single request is made.
+     */
+    public FetchResult retrieve(FetchTask task, BodyConsumer consumer) {
 
         URL url;
         try {
-            url = new URL(urlStr);
+            url = new URL(task.url);
         }
         catch (MalformedURLException e) {
             return null;
         }
 
+        final FetchResult result = new FetchResult();
+        boolean permanent = true;
+        try {
+            while (true) {
+                final URL next = request(task, url, result, consumer);
+                if (next == null) {
+                    break;
+                }
+                if (result.redirects >= MAX_REDIRECTS) {
+                    Log.w("UrlHR", "too many redirects: " + task.url);
+                    return null;
+                }
+                result.redirects++;
+                permanent = permanent && isPermanentRedirect(result.status);
+                if (permanent) {
+                    result.movedTo = next.toString();
+                }
+                Log.i("UrlHR", "redirect " + result.status + " from " + url + " to " + next);
+                url = next;
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        return result;
+    }
+
+
+    /**
+     * Makes one request to the given URL.
+     * <p>
+     * If the task has an ETag or a Last-Modified value from an earlier
+     * response, they are sent back as If-None-Match and If-Modified-Since so
+     * that the server can answer with 304 if nothing changed. Only if neither
+     * is known the last poll date is used for If-Modified-Since.
+     * <p>
+     * The server is told that gzip and deflate compressed data is accepted.
+     * Compressed data is decompressed while it is read and then handled by
+     * {@link ResponseBody}. A connection whose body was cut off is dropped.
+     * <p>
+     * The deadlines are enforced by the {@link DownloadWatchdog}.
+     * <p>
+     * If the {@link ConnectionTracker} asks for keep-alive and the server
+     * keeps the connection open, the rest of the response is read and the
+     * connection is left open so that the next download from the same server
+     * can reuse it.
+     * 
+     * @param task
+     *            the feed to get
+     * @param url
+     *            the URL to request
+     * @param result
+     *            receives the status, headers and body
+     * @param consumer
+     *            the object that reads the body
+     * @return the location to go to if the response is a redirect, otherwise
+     *         null
+     * @throws IOException
+     *             if the request failed or a redirect has no location
+     */
+    private URL request(FetchTask task, URL url, FetchResult result, BodyConsumer consumer) throws IOException {
         HttpURLConnection urlConnection = null;
-        KillThread killThread = null;
-        String result = null;
+        InputStream decodedStream = null;
+        DownloadWatchdog.Deadline deadline = null;
+        boolean reusable = false;
+        long respondingMs = -1;
+        connections.open(url);
+        final long startMs = SystemClock.uptimeMillis();
         try {
             urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setInstanceFollowRedirects(false);
             urlConnection.setUseCaches(true);
-            urlConnection.setIfModifiedSince(lastPollDateMs);
+            if ((task.etag == null) && (task.lastModified == null)) {
+                urlConnection.setIfModifiedSince(task.lastPollDateMs);
+            }
+            if (task.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", task.etag);
+            }
+            if (task.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", task.lastModified);
+            }
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
             urlConnection.setConnectTimeout(timeoutMs);
-            killThread = new KillThread(urlConnection, maxTransferTimeMs);
-            killThread.start();
-            final InputStream inputStream = urlConnection.getInputStream();
-            final String encoding = getEncodingFromStream(inputStream);
-            Log.i("UrlHR", "encoding " + encoding);
-            result = Utils.readStream(inputStream, encoding);
-            int responseCode = urlConnection.getResponseCode();
-            if (responseCode == 304) {
-                // Not Modified
-                return "";
+            deadline = DownloadWatchdog.getInstance().watch(urlConnection, timeoutMs, firstByteTimeoutMs,
+                            maxTransferTimeMs);
+            urlConnection.connect();
+            deadline.connected();
+            final long connectedMs = SystemClock.uptimeMillis();
+            result.connectMs += connectedMs - startMs;
+            result.status = urlConnection.getResponseCode();
+            deadline.responding();
+            respondingMs = SystemClock.uptimeMillis();
+            result.firstByteMs += respondingMs - connectedMs;
+            final boolean persistent = ConnectionTracker.isPersistent(urlConnection.getHeaderField(0),
+                            urlConnection.getHeaderField("Connection"));
+            if (result.isNotModified()) {
+                Log.i("UrlHR", "not modified: " + url);
+                reusable = persistent && finishBody(urlConnection.getInputStream());
+                return null;
             }
-        }
-        catch (IOException e) {
+            if (isRedirect(result.status)) {
+                final String location = urlConnection.getHeaderField("Location");
+                if (location == null) {
+                    // The body is not the feed, and its validators must not
+                    // replace the feed's.
+                    Log.w("UrlHR", "redirect " + result.status + " without location: " + url);
+                    throw new IOException("redirect without location");
+                }
+                reusable = persistent && finishBody(urlConnection.getInputStream());
+                return new URL(url, location);
+            }
+            result.etag = urlConnection.getHeaderField("ETag");
+            result.lastModified = urlConnection.getHeaderField("Last-Modified");
+            result.contentType = urlConnection.getContentType();
+            // The consumer cannot close rawStream (see ResponseBody), so it
+            // can be drained for keep-alive afterwards.
+            final CountingInputStream rawStream = new CountingInputStream(urlConnection.getInputStream());
+            decodedStream = openDecodedStream(new ResponseBody.UnclosableInputStream(rawStream),
+                            urlConnection.getContentEncoding());
+            ResponseBody.consume(task, result, decodedStream, result.contentType, consumer);
+            if (deadline.hasExpired()) {
+                // The consumer may have swallowed the exception caused by the
+                // abort.
+                throw new IOException("deadline expired");
+            }
+            if (result.truncated) {
+                Log.w("UrlHR", "cut off after " + task.maxBytes + " bytes: " + url);
+            }
+            else {
+                reusable = persistent && finishBody(rawStream);
+            }
+            result.bytesReceived = rawStream.getCount();
+            Log.i("UrlHR", "received " + result.bytesReceived + " bytes, " + result.bytesDecoded + " bytes decoded ("
+                            + urlConnection.getContentEncoding() + "): " + url);
             return null;
         }
         finally {
-            if (killThread != null) {
-                killThread.interrupt();
+            if (respondingMs != -1) {
+                result.transferMs += SystemClock.uptimeMillis() - respondingMs;
+            }
+            if (deadline != null) {
+                deadline.finish();
+                reusable = reusable && !deadline.hasExpired();
             }
-            if (urlConnection != null) {
+            connections.release(url, reusable);
+            if ((urlConnection != null) && !reusable) {
                 urlConnection.disconnect();
             }
+            closeDecoder(decodedStream);
         }
+    }
 
-        return result;
+
+    /**
+     * Frees the native memory of the decompressor, if any, right away instead
+     * of when it is finalized. The connection's stream is not closed by this.
+     * 
+     * @param decodedStream
+     *            the stream returned by
+     *            {@link #openDecodedStream(InputStream, String)} or null
+     */
+    private static void closeDecoder(InputStream decodedStream) {
+        if (decodedStream == null) {
+            return;
+        }
+        try {
+            decodedStream.close();
+        }
+        catch (IOException e) {
+            // Nothing left to free.
+        }
     }
 
 
-    private String getEncodingFromStream(InputStream in) throws IOException {
-        String line = readXmlTextDecl(in);
-        return getEncodingFromTextDecl(line);
+    /**
+     * @param status
+     *            an HTTP status code
+     * @return true, if the status code is one of a redirect that has a
+     *         Location header
+     */
+    static boolean isRedirect(int status) {
+        return (status == HttpURLConnection.HTTP_MOVED_PERM) || (status == HttpURLConnection.HTTP_MOVED_TEMP)
+                        || (status == HttpURLConnection.HTTP_SEE_OTHER) || (status == HTTP_TEMPORARY_REDIRECT)
+                        || (status == HTTP_PERMANENT_REDIRECT);
     }
 
 
-    protected String getEncodingFromTextDecl(String line) {
-        String encoding = DEFAULT_XML_TEXT_ENCODING;
-        final int pos = line.indexOf(ENCODING_PREFIX);
-        if (pos != -1) {
-            String e = line.substring(pos + ENCODING_PREFIX.length());
-            final int dqPos = e.indexOf('"');
-            if (dqPos != -1) {
-                e = e.substring(0, dqPos);
-                encoding = e;
-            }
-        }
-        return encoding;
+    /**
+     * @param status
+     *            an HTTP status code
+     * @return true, if the status code says that the resource moved for good
+     */
+    static boolean isPermanentRedirect(int status) {
+        return (status == HttpURLConnection.HTTP_MOVED_PERM) || (status == HTTP_PERMANENT_REDIRECT);
     }
 
 
-    private String readXmlTextDecl(InputStream in) throws IOException {
-        StringBuilder firstLine = new StringBuilder();
-        byte[] buffer = new byte[1];
-        while (in.read(buffer) != -1) {
-            final byte b = buffer[0];
-            firstLine.append((char) b);
-            if (buffer[0] == '>') {
-                break;
+    /**
+     * Reads what is left of the body and closes the stream so that the
+     * connection can be reused. Does nothing if keep-alive is off.
+     * <p>
+     * The data was already processed, so a failure here only means that the
+     * connection cannot be reused; the download still counts as successful.
+     * 
+     * @param body
+     *            the stream of the response body
+     * @return true, if the connection can be reused
+     */
+    private boolean finishBody(InputStream body) {
+        if (!connections.isKeepAlive()) {
+            return false;
+        }
+        try {
+            final byte[] buffer = new byte[1024];
+            while (body.read(buffer) != -1) {
+                // drain
             }
+            body.close();
+            return true;
+        }
+        catch (IOException e) {
+            Log.w("UrlHR", "could not drain response body: " + e);
+            return false;
         }
-        String line = firstLine.toString();
-        return line;
     }
 
 
     /**
-     * The thread that is used to kill a download after a timeout expires.
+     * Wraps the given stream into one that decompresses the data according to
+     * the Content-Encoding of the response.
+     * 
+     * @param in
+     *            the stream as received from the server
+     * @param contentEncoding
+     *            the value of the Content-Encoding header or null
+     * @return the stream that delivers the uncompressed data
+     * @throws IOException
      */
-    private class KillThread extends Thread {
+    private InputStream openDecodedStream(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        final String ce = contentEncoding.trim().toLowerCase();
+        if ("gzip".equals(ce) || "x-gzip".equals(ce)) {
+            return new GZIPInputStream(in);
+        }
+        else if ("deflate".equals(ce)) {
+            // Some servers send raw deflate data instead of the zlib format
+            // the standard asks for. A zlib stream starts with a two-byte
+            // header whose lower nibble is 8 and that is divisible by 31.
+            final BufferedInputStream bin = new BufferedInputStream(in);
+            bin.mark(2);
+            final int b0 = bin.read();
+            final int b1 = bin.read();
+            bin.reset();
+            final boolean zlib = (b0 != -1) && (b1 != -1) && ((b0 & 0x0f) == 8) && ((((b0 << 8) | b1) % 31) == 0);
+            return new DeflateInputStream(bin, !zlib);
+        }
+        return in;
+    }
 
-        private HttpURLConnection conn;
-        private int maxTransfertTimeMs;
 
+    /**
+     * Decompresses deflate data. Unlike a plain {@link InflaterInputStream}
+     * with an {@link Inflater} of its own, it ends the inflater when it is
+     * closed, like {@link GZIPInputStream} does.
+     */
+    private static class DeflateInputStream extends InflaterInputStream {
 
-        public KillThread(HttpURLConnection conn, int maxTransferTimeMs) {
-            this.conn = conn;
-            this.maxTransfertTimeMs = maxTransferTimeMs;
+        /**
+         * @param in
+         *            the compressed data
+         * @param raw
+         *            true, if the data has no zlib header
+         */
+        DeflateInputStream(InputStream in, boolean raw) {
+            super(in, new Inflater(raw));
         }
 
 
-        public void run() {
+        @Override
+        public void close() throws IOException {
             try {
-                Thread.sleep(maxTransfertTimeMs);
-            }
-            catch (InterruptedException e) {
-                Log.i("UpdateService", "KillThread stopped");
-                return;
+                super.close();
             }
-            if ((conn != null)) {
-                Log.i("UpdateService", "Aborted download of " + conn.getURL());
-                conn.disconnect();
+            finally {
+                inf.end();
             }
         }
     }
@@ -21,6 +21,7 @@ package de.codefu.android.rss.updateservice;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 
 import android.text.Html;
 
@@ -44,12 +45,24 @@ public class Utils {
      * @throws IOException
      */
     public static String readStream(InputStream inStream, String encoding) throws IOException {
+        return readStream(new InputStreamReader(inStream, encoding));
+    }
+
+
+    /**
+     * Makes a string out of a {@link Reader}.
+     * 
+     * @param reader
+     *            the reader
+     * @return the string that contains the data from the reader
+     * @throws IOException
+     */
+    public static String readStream(Reader reader) throws IOException {
         final StringBuilder builder = new StringBuilder();
         int size = 1024;
         char[] buffer = new char[size];
         int len;
-        final InputStreamReader isr = new InputStreamReader(inStream, encoding);
-        while ((len = isr.read(buffer, 0, size)) > 0) {
+        while ((len = reader.read(buffer, 0, size)) > 0) {
             builder.append(buffer, 0, len);
         }
 
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+
+import junit.framework.Assert;
+import android.test.InstrumentationTestCase;
+
+
+
+/**
+ * Tests the CharsetSniffer class.
+ *
+ * @author mj
+ */
+public class CharsetSnifferTest extends InstrumentationTestCase {
+
+    private static final String LATIN1_DOC = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><rss>Überfälle</rss>";
+
+    private static final String PLAIN_DOC = "<?xml version=\"1.0\"?><rss>Überfälle</rss>";
+
+
+    private String read(byte[] data, String contentType) throws IOException {
+        final Reader reader = CharsetSniffer.openReader(new ByteArrayInputStream(data), contentType);
+        return Utils.readStream(reader);
+    }
+
+
+    private byte[] concat(byte[] a, byte[] b) {
+        final byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+
+    public void test_textDecl() throws IOException {
+        Assert.assertEquals(LATIN1_DOC, read(LATIN1_DOC.getBytes("ISO-8859-1"), null));
+        Assert.assertEquals(LATIN1_DOC, read(LATIN1_DOC.getBytes("ISO-8859-1"), "text/xml"));
+    }
+
+
+    public void test_singleQuotes() throws IOException {
+        final String doc = "<?xml version='1.0' encoding='ISO-8859-1'?><rss>Überfälle</rss>";
+        Assert.assertEquals(doc, read(doc.getBytes("ISO-8859-1"), null));
+    }
+
+
+    public void test_default() throws IOException {
+        Assert.assertEquals(PLAIN_DOC, read(PLAIN_DOC.getBytes("UTF-8"), null));
+        Assert.assertEquals("", read(new byte[0], null));
+    }
+
+
+    public void test_contentTypeBeatsTextDecl() throws IOException {
+        final String doc = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><rss>Überfälle</rss>";
+        Assert.assertEquals(doc, read(doc.getBytes("UTF-8"), "application/rss+xml; charset=\"utf-8\""));
+    }
+
+
+    public void test_bomBeatsContentType() throws IOException {
+        final byte[] bom = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+        Assert.assertEquals(LATIN1_DOC, read(concat(bom, LATIN1_DOC.getBytes("UTF-8")), "text/xml; charset=ISO-8859-1"));
+    }
+
+
+    public void test_utf16() throws IOException {
+        final byte[] bomLE = {(byte) 0xff, (byte) 0xfe};
+        Assert.assertEquals(PLAIN_DOC, read(concat(bomLE, PLAIN_DOC.getBytes("UTF-16LE")), null));
+        final byte[] bomBE = {(byte) 0xfe, (byte) 0xff};
+        Assert.assertEquals(PLAIN_DOC, read(concat(bomBE, PLAIN_DOC.getBytes("UTF-16BE")), null));
+        Assert.assertEquals(PLAIN_DOC, read(PLAIN_DOC.getBytes("UTF-16LE"), null));
+    }
+
+
+    public void test_unknownCharset() throws IOException {
+        Assert.assertEquals(LATIN1_DOC, read(LATIN1_DOC.getBytes("ISO-8859-1"), "text/xml; charset=x-nonsense"));
+    }
+
+
+    public void test_longDocument() throws IOException {
+        final StringBuilder sb = new StringBuilder(PLAIN_DOC);
+        for (int i = 0; i < 10000; i++) {
+            sb.append("<item>").append(i).append("</item>");
+        }
+        final String doc = sb.toString();
+        Assert.assertEquals(doc, read(doc.getBytes("UTF-8"), null));
+    }
+
+
+    public void test_getCharsetFromContentType() {
+        Assert.assertNull(CharsetSniffer.getCharsetFromContentType(null));
+        Assert.assertNull(CharsetSniffer.getCharsetFromContentType("text/xml"));
+        Assert.assertEquals("utf-8", CharsetSniffer.getCharsetFromContentType("text/xml;charset=utf-8"));
+        Assert.assertEquals("UTF-8", CharsetSniffer.getCharsetFromContentType("text/xml; q=1; Charset = \"UTF-8\""));
+    }
+}
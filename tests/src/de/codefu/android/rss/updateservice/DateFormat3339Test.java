@@ -105,6 +105,132 @@ public class DateFormat3339Test extends InstrumentationTestCase {
     }
 
 
+    public void test_8a() {
+        doTheThing("2011-04-17t22:19:05z", 2011, GregorianCalendar.APRIL, 18, 0, 19, 5, 120);
+    }
+
+
+    public void test_8b() {
+        doTheThing("2011-04-17 22:19:05+02:00", 2011, GregorianCalendar.APRIL, 17, 22, 19, 5, 120);
+    }
+
+
+    public void test_8c() {
+        doTheThing("  2011-04-17T22:19:05+0200 ", 2011, GregorianCalendar.APRIL, 17, 22, 19, 5, 120);
+    }
+
+
+    public void test_9() throws ParseException {
+        final TimeZone tz = TimeZone.getTimeZone("PST");
+        Assert.assertEquals(1303071545250l, DateFormat3339.parse("2011-04-17T22:19:05.25+02:00", tz).getTime());
+        Assert.assertEquals(1303071545123l, DateFormat3339.parse("2011-04-17T20:19:05.123456Z", tz).getTime());
+        Assert.assertEquals(1303071545000l, DateFormat3339.parse("2011-04-17T20:19:05+00:00", tz).getTime());
+    }
+
+
+    public void test_10() {
+        // Without a time zone the given one is used.
+        doTheThing("2011-07-17T07:50:25", 2011, GregorianCalendar.JULY, 17, 16, 50, 25, 120);
+    }
+
+
+    public void test_11a() {
+        doTheThing("17 Jul 2011 21:56:57 +0200", 2011, GregorianCalendar.JULY, 17, 21, 56, 57, 120);
+    }
+
+
+    public void test_11b() {
+        doTheThing("Sun, 17 Jul 2011 21:56 CEST", 2011, GregorianCalendar.JULY, 17, 21, 56, 0, 120);
+    }
+
+
+    public void test_11c() {
+        doTheThing("Thu, 28 Jul 2011 09:59:59 EDT", 2011, GregorianCalendar.JULY, 28, 15, 59, 59, 120);
+    }
+
+
+    public void test_11d() {
+        doTheThing("Mon, 17 Jan 2011 21:56:57 GMT", 2011, GregorianCalendar.JANUARY, 17, 22, 56, 57, 60);
+    }
+
+
+    public void test_11e() {
+        doTheThing("Mon, 17 Jan 11 21:56:57 MEZ", 2011, GregorianCalendar.JANUARY, 17, 21, 56, 57, 60);
+    }
+
+
+    public void test_11f() {
+        doTheThing("Sun, 17 Jul 2011 21:56:57 GMT+02:00", 2011, GregorianCalendar.JULY, 17, 21, 56, 57, 120);
+    }
+
+
+    public void test_11g() {
+        doTheThing("sun, 6 july 2011 21:56:57 -0000", 2011, GregorianCalendar.JULY, 6, 23, 56, 57, 120);
+    }
+
+
+    public void test_12() {
+        doTheThing("2012-02-29T12:00:00Z", 2012, GregorianCalendar.FEBRUARY, 29, 13, 0, 0, 60);
+        doTheThing("1999-12-31T23:30:00-01:00", 2000, GregorianCalendar.JANUARY, 1, 1, 30, 0, 60);
+    }
+
+
+    public void test_invalid() {
+        final String[] invalid = {"", "foo", "2011-04-17", "2011-04-17T22:19", "2011-13-17T22:19:05Z",
+                        "2011-04-17T22:19:05+2", "2011-04-17T22:19:05 XYZ", "Sun, 17 Foo 2011 21:56:57 GMT",
+                        "Sun, 17 Jul 2011", "Sun, 17 Jul 2011 21:56:57 +02:00:00"};
+        final TimeZone tz = TimeZone.getTimeZone("PST");
+        for (String s : invalid) {
+            try {
+                DateFormat3339.parse(s, tz);
+                Assert.fail("parsed " + s);
+            }
+            catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+
+    public void test_threads() throws InterruptedException {
+        final String[] dates = {"2011-04-17T22:19:05+02:00", "Sun, 17 Jul 2011 16:50:25 MEST",
+                        "Thu, 28 Jul 2011 09:59:59 EDT", "2012-01-17T23:59:59-02:00"};
+        final long[] expected = {1303071545000l, 1310914225000l, 1311861599000l, 1326851999000l};
+        final TimeZone tz = TimeZone.getTimeZone("PST");
+        final int[] errors = new int[1];
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        final int n = (i + offset) % dates.length;
+                        try {
+                            if (DateFormat3339.parse(dates[n], tz).getTime() != expected[n]) {
+                                synchronized (errors) {
+                                    errors[0]++;
+                                }
+                            }
+                        }
+                        catch (ParseException e) {
+                            synchronized (errors) {
+                                errors[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals("errors", 0, errors[0]);
+    }
+
+
     private void doTheThing(String dateStr, int year, int mon, int day, int h, int m, int s, int offs) {
         Date ex = new Date();
         try {
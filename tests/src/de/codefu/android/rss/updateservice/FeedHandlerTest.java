@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.Assert;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.content.res.AssetManager;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * Measures how many objects the FeedHandler allocates per item and checks
+ * that fields stay within their size budget.
+ * <p>
+ * The events of the SAX parser are recorded first and then replayed into the
+ * handler, so only the allocations of the handler (and the items it creates)
+ * are counted.
+ *
+ * @author mj
+ */
+public class FeedHandlerTest extends InstrumentationTestCase {
+
+    private static final String TAG = "FeedHandlerTest";
+
+    private static final String[] ASSETS = {"atom.xml", "example091.xml", "example10.xml", "rdf.xml", "rdf2.xml",
+                    "site2.xml", "test2.xml", "test3.xml"};
+
+    /**
+     * The number of items in the generated feed.
+     */
+    private static final int ITEM_COUNT = 200;
+
+    /**
+     * The upper bound for the allocations per item of the generated feed,
+     * which has no dates. An item needs the Item and four strings.
+     */
+    private static final int MAX_ALLOCATIONS_PER_ITEM = 12;
+
+    private static final int EVENT_START = 0;
+
+    private static final int EVENT_END = 1;
+
+    private static final int EVENT_CHARACTERS = 2;
+
+    private static final int EVENT_END_DOCUMENT = 3;
+
+
+    /**
+     * One recorded SAX event.
+     */
+    private static class Event {
+
+        int type;
+        String uri;
+        String localName;
+        String qName;
+        Attributes attributes;
+        char[] text;
+    }
+
+
+    /**
+     * Records the SAX events of a document.
+     */
+    private static class Recorder extends DefaultHandler {
+
+        final List<Event> events = new ArrayList<Event>();
+
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            final Event e = add(EVENT_START);
+            e.uri = uri;
+            e.localName = localName;
+            e.qName = qName;
+            e.attributes = new AttributesImpl(attributes);
+        }
+
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            final Event e = add(EVENT_END);
+            e.uri = uri;
+            e.localName = localName;
+            e.qName = qName;
+        }
+
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            final Event e = add(EVENT_CHARACTERS);
+            e.text = new char[length];
+            System.arraycopy(ch, start, e.text, 0, length);
+        }
+
+
+        @Override
+        public void endDocument() {
+            add(EVENT_END_DOCUMENT);
+        }
+
+
+        private Event add(int type) {
+            final Event e = new Event();
+            e.type = type;
+            events.add(e);
+            return e;
+        }
+    }
+
+
+    /**
+     * Keeps the items.
+     */
+    private static class ListClient implements FeedHandlerClient {
+
+        final List<Item> items = new ArrayList<Item>();
+
+
+        public void addItem(long feedId, int cleanHtml, Item item) {
+            items.add(item);
+        }
+
+
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+        }
+    }
+
+
+    /**
+     * Counts the items without keeping them.
+     */
+    private static class CountingClient implements FeedHandlerClient {
+
+        int items;
+
+
+        public void addItem(long feedId, int cleanHtml, Item item) {
+            items++;
+        }
+
+
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+        }
+    }
+
+
+    private List<Event> record(String xml) throws Exception {
+        final Recorder recorder = new Recorder();
+        SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new StringReader(xml)), recorder);
+        return recorder.events;
+    }
+
+
+    private void replay(List<Event> events, DefaultHandler handler) throws SAXException {
+        for (Event e : events) {
+            switch (e.type) {
+                case EVENT_START:
+                    handler.startElement(e.uri, e.localName, e.qName, e.attributes);
+                    break;
+                case EVENT_END:
+                    handler.endElement(e.uri, e.localName, e.qName);
+                    break;
+                case EVENT_CHARACTERS:
+                    handler.characters(e.text, 0, e.text.length);
+                    break;
+                default:
+                    handler.endDocument();
+            }
+        }
+    }
+
+
+    /**
+     * Replays the events into a new handler and counts the allocations.
+     *
+     * @return the number of allocations per item
+     */
+    private int measure(String name, List<Event> events) throws SAXException {
+        final CountingClient client = new CountingClient();
+        final TimeZone tz = TimeZone.getTimeZone("PST");
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        replay(events, new FeedHandler(1, 0, client, tz));
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        final int perItem = allocations / Math.max(1, client.items);
+        Log.i(TAG, name + ": " + client.items + " items, " + perItem + " allocations per item");
+        return perItem;
+    }
+
+
+    private String createFeed() {
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><rss><channel><title>Feed</title>");
+        sb.append("<link>http://example.com/</link><description>Generated</description>");
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            sb.append("<item><title>Title ").append(i).append(" &amp; more</title>");
+            sb.append("<link>http://example.com/item?id=").append(i).append("</link>");
+            sb.append("<guid>http://example.com/guid?id=").append(i).append("</guid>");
+            sb.append("<description>&lt;p&gt;Description &amp;amp; text ").append(i);
+            sb.append(" with &amp;quot;entities&amp;quot;.&lt;/p&gt;</description></item>");
+        }
+        sb.append("</channel></rss>");
+        return sb.toString();
+    }
+
+
+    private String readFile(String name) throws IOException {
+        final AssetManager assets = getInstrumentation().getContext().getResources().getAssets();
+        final InputStream is = assets.open(name, AssetManager.ACCESS_STREAMING);
+        return Utils.readStream(CharsetSniffer.openReader(is, null));
+    }
+
+
+    public void test_allocationsPerItem() throws Exception {
+        final List<Event> events = record(createFeed());
+        // The first run loads classes.
+        measure("warm-up", events);
+        final int perItem = measure("generated", events);
+        Assert.assertTrue("allocations per item: " + perItem, perItem <= MAX_ALLOCATIONS_PER_ITEM);
+    }
+
+
+    public void test_allocationsPerItemAssets() throws Exception {
+        for (String name : ASSETS) {
+            measure(name, record(readFile(name)));
+        }
+    }
+
+
+    private static char[] filled(int length) {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return chars;
+    }
+
+
+    private void characters(FeedHandler handler, String text) throws SAXException {
+        handler.characters(text.toCharArray(), 0, text.length());
+    }
+
+
+    public void test_fieldBudget() throws Exception {
+        final ListClient client = new ListClient();
+        final FeedHandler handler = new FeedHandler(1, 0, client, TimeZone.getTimeZone("PST"));
+        final AttributesImpl none = new AttributesImpl();
+        handler.startElement("", "item", "item", none);
+        handler.startElement("", "title", "title", none);
+        final char[] chunk = filled(1000);
+        for (int i = 0; i < 20; i++) {
+            handler.characters(chunk, 0, chunk.length);
+        }
+        handler.endElement("", "title", "title");
+        handler.startElement("", "description", "description", none);
+        // About 5 MB with a tag that is cut in the middle.
+        for (int i = 0; i < 5000; i++) {
+            characters(handler, "<p>Text &amp; more</p>");
+            handler.characters(chunk, 0, chunk.length - i % 7);
+        }
+        characters(handler, "<img src=\"data:image/png;base64,");
+        for (int i = 0; i < 200; i++) {
+            handler.characters(chunk, 0, chunk.length);
+        }
+        handler.endElement("", "description", "description");
+        handler.endElement("", "item", "item");
+        handler.startElement("", "item", "item", none);
+        handler.startElement("", "description", "description", none);
+        characters(handler, "short");
+        handler.endElement("", "description", "description");
+        handler.endElement("", "item", "item");
+
+        Assert.assertEquals(2, client.items.size());
+        final Item big = client.items.get(0);
+        final int markerLength = FeedHandler.TRUNCATION_MARKER.length();
+        Assert.assertTrue(big.headline.endsWith(FeedHandler.TRUNCATION_MARKER));
+        Assert.assertTrue(big.headline.length() <= FeedHandler.MAX_SHORT_CHARS + markerLength);
+        Assert.assertTrue(big.content.endsWith(FeedHandler.TRUNCATION_MARKER));
+        Assert.assertTrue(big.content.length() <= FeedHandler.MAX_BODY_CHARS + markerLength);
+        final String body = big.content.substring(0, big.content.length() - markerLength);
+        Assert.assertTrue("no open tag", body.lastIndexOf('<') < body.lastIndexOf('>'));
+        Assert.assertEquals("short", client.items.get(1).content);
+
+        // Cut inside an entity
+        final FeedHandler handler2 = new FeedHandler(1, 0, client, TimeZone.getTimeZone("PST"));
+        handler2.startElement("", "item", "item", none);
+        handler2.startElement("", "link", "link", none);
+        handler2.characters(filled(FeedHandler.MAX_SHORT_CHARS - 3), 0, FeedHandler.MAX_SHORT_CHARS - 3);
+        characters(handler2, " &amp;");
+        handler2.endElement("", "link", "link");
+        handler2.endElement("", "item", "item");
+        final String link = client.items.get(2).link;
+        Assert.assertEquals(FeedHandler.MAX_SHORT_CHARS - 3 + markerLength, link.length());
+    }
+}
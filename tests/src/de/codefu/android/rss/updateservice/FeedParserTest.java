@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * Compares the parser engines: both must deliver the same data, and their
+ * throughput on the assets is logged side by side.
+ *
+ * @author mj
+ */
+public class FeedParserTest extends InstrumentationTestCase {
+
+    private static final String TAG = "FeedParserTest";
+
+    /**
+     * RSS 0.91, 1.0 and 2.0, RDF and Atom.
+     */
+    private static final String[] ASSETS = {"example091.xml", "example10.xml", "test2.xml", "test3.xml", "site2.xml",
+                    "rdf.xml", "rdf2.xml", "atom.xml"};
+
+    private static final int ROUNDS = 200;
+
+
+    /**
+     * Records the items and the feed's data as strings.
+     */
+    private static class RecordingClient implements FeedHandlerClient {
+
+        final List<String> data = new ArrayList<String>();
+        int items;
+        FeedHandler handler;
+        int stopAfter = Integer.MAX_VALUE;
+
+
+        public void addItem(long feedId, int cleanHtml, Item item) {
+            items++;
+            data.add(item.headline + "|" + item.content + "|" + item.link + "|" + item.guid + "|" + item.date);
+            if (items >= stopAfter) {
+                handler.stop();
+            }
+        }
+
+
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+            data.add("feed|" + name + "|" + description + "|" + url + "|"
+                            + ((hints == null) ? null : hints.getMinIntervalMin() + "/" + hints.getSkipHours() + "/"
+                                            + hints.getSkipDays()));
+        }
+    }
+
+
+    private RecordingClient parse(FeedParser parser, String xml, int stopAfter) throws IOException {
+        final RecordingClient client = new RecordingClient();
+        client.stopAfter = stopAfter;
+        client.handler = new FeedHandler(1, 0, client, TimeZone.getTimeZone("PST"));
+        parser.parse(new StringReader(xml), client.handler);
+        return client;
+    }
+
+
+    private String readFile(String name) throws IOException {
+        final AssetManager assets = getInstrumentation().getContext().getResources().getAssets();
+        final InputStream is = assets.open(name, AssetManager.ACCESS_STREAMING);
+        return Utils.readStream(CharsetSniffer.openReader(is, null));
+    }
+
+
+    public void test_sameData() throws IOException {
+        for (String name : ASSETS) {
+            final String xml = readFile(name);
+            final RecordingClient sax = parse(FeedParser.SAX, xml, Integer.MAX_VALUE);
+            final RecordingClient pull = parse(FeedParser.PULL, xml, Integer.MAX_VALUE);
+            Assert.assertTrue(name + " has items", sax.items > 0);
+            Assert.assertEquals(name, sax.data, pull.data);
+        }
+    }
+
+
+    public void test_stop() throws IOException {
+        final String xml = readFile("atom.xml");
+        final RecordingClient sax = parse(FeedParser.SAX, xml, 1);
+        final RecordingClient pull = parse(FeedParser.PULL, xml, 1);
+        Assert.assertEquals("sax items", 1, sax.items);
+        Assert.assertEquals("pull items", 1, pull.items);
+        Assert.assertEquals(sax.data, pull.data);
+        // The item and the feed's data
+        Assert.assertEquals(2, pull.data.size());
+    }
+
+
+    public void test_earlyStop() throws IOException {
+        final StringBuilder sb = new StringBuilder("<rss><channel><title>Foo</title>");
+        sb.append("<item><title>no guid</title><link>http://example.com/0</link></item>");
+        for (int i = 1; i < 10; i++) {
+            sb.append("<item><title>").append(i).append("</title><guid>g").append(i).append("</guid></item>");
+        }
+        sb.append("</channel></rss>");
+        final KnownItems known = new KnownItems();
+        known.add(null, "http://example.com/0");
+        for (String guid : new String[] {"g2", "g4", "g5", "g6", "g7"}) {
+            known.add(guid, null);
+        }
+        for (FeedParser parser : new FeedParser[] {FeedParser.SAX, FeedParser.PULL}) {
+            final RecordingClient client = new RecordingClient();
+            client.handler = new FeedHandler(1, 0, client, TimeZone.getTimeZone("PST"));
+            client.handler.setEarlyStop(known, 3);
+            parser.parse(new StringReader(sb.toString()), client.handler);
+            // 0 and 2 are skipped, 1 and 3 end their runs, 4, 5 and 6 stop it.
+            Assert.assertEquals("items", 2, client.items);
+            Assert.assertEquals("skipped", 5, client.handler.getSkippedItems());
+            Assert.assertTrue(client.handler.isStopped());
+            Assert.assertEquals("feed|Foo|null|null|null", client.data.get(client.data.size() - 1));
+        }
+    }
+
+
+    public void test_invalid() throws IOException {
+        final String xml = "<rss><channel><title>Foo</title><ttl>90</ttl><item><title>1</title></item><item>";
+        final RecordingClient sax = parse(FeedParser.SAX, xml, Integer.MAX_VALUE);
+        final RecordingClient pull = parse(FeedParser.PULL, xml, Integer.MAX_VALUE);
+        Assert.assertEquals("sax items", 1, sax.items);
+        Assert.assertEquals(sax.data, pull.data);
+        // The feed's data up to the error, without the hints
+        Assert.assertEquals("feed|Foo|null|null|null", sax.data.get(sax.data.size() - 1));
+        for (FeedParser parser : new FeedParser[] {FeedParser.SAX, FeedParser.PULL}) {
+            final RecordingClient client = new RecordingClient();
+            client.handler = new FeedHandler(1, 0, client, TimeZone.getTimeZone("PST"));
+            Assert.assertFalse(parser.parse(new StringReader(xml), client.handler));
+            Assert.assertTrue(parser.parse(new StringReader("<rss><channel/></rss>"), client.handler));
+        }
+    }
+
+
+    public void test_throughput() throws IOException {
+        for (String name : ASSETS) {
+            final String xml = readFile(name);
+            final StringBuilder sb = new StringBuilder(name);
+            for (FeedParser parser : new FeedParser[] {FeedParser.SAX, FeedParser.PULL}) {
+                // Warm-up
+                parse(parser, xml, Integer.MAX_VALUE);
+                int items = 0;
+                final long start = System.nanoTime();
+                for (int i = 0; i < ROUNDS; i++) {
+                    items += parse(parser, xml, Integer.MAX_VALUE).items;
+                }
+                final long ns = Math.max(1, System.nanoTime() - start);
+                final long kbPerSec = xml.length() * (long) ROUNDS * 1000000000L / ns / 1024;
+                final long itemsPerSec = items * 1000000000L / ns;
+                sb.append((parser == FeedParser.SAX) ? " - SAX: " : " - XmlPull: ");
+                sb.append(kbPerSec).append(" KB/s, ").append(itemsPerSec).append(" items/s");
+            }
+            Log.i(TAG, sb.toString());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+import android.test.InstrumentationTestCase;
+import de.codefu.android.rss.db.FeedProvider;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * Tests recording responses with the RecordingRetriever and replaying them
+ * with the FixtureRetriever.
+ *
+ * @author mj
+ */
+public class FixtureRetrieverTest extends InstrumentationTestCase {
+
+    private static final String URL = "http://example.com/feed.xml";
+
+    private static final String DOC = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><rss>Überfälle</rss>";
+
+    private File dir;
+    private FeedCorpus corpus;
+
+
+    /**
+     * Serves a fixed ISO-8859-1 document like a server would.
+     */
+    private static class FakeRetriever implements FeedRetriever {
+
+        public FetchResult retrieve(FetchTask task, BodyConsumer consumer) {
+            final FetchResult result = new FetchResult();
+            result.status = 200;
+            result.etag = "\"v1\"";
+            result.contentType = "text/xml";
+            try {
+                final byte[] data = DOC.getBytes("ISO-8859-1");
+                ResponseBody.consume(task, result, new ByteArrayInputStream(data), result.contentType, consumer);
+                result.bytesReceived = data.length;
+            }
+            catch (IOException e) {
+                return null;
+            }
+            return result;
+        }
+    }
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("corpus", "");
+        dir.delete();
+        corpus = new FeedCorpus(dir);
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+
+    private FetchTask createTask(String url, String etag) {
+        return new FetchTask(1, url, 0, etag, null, 1024 * 1024, null, 0, 0, 0, FeedProvider.PARSER_SAX);
+    }
+
+
+    public void test_recordAndReplay() {
+        final FetchResult recorded = new RecordingRetriever(new FakeRetriever(), corpus).retrieve(createTask(URL, null),
+                        FeedRetriever.BUFFERING);
+        Assert.assertEquals(DOC, recorded.body);
+        Assert.assertEquals(2, dir.list().length);
+
+        final FetchResult replayed = new FixtureRetriever(corpus).retrieve(createTask(URL, null),
+                        FeedRetriever.BUFFERING);
+        Assert.assertEquals(200, replayed.status);
+        Assert.assertEquals(DOC, replayed.body);
+        Assert.assertEquals("\"v1\"", replayed.etag);
+        Assert.assertNotNull(replayed.bodyHash);
+
+        final FetchResult again = new FixtureRetriever(corpus).retrieve(createTask(URL, null), FeedRetriever.BUFFERING);
+        Assert.assertEquals(replayed.bodyHash, again.bodyHash);
+    }
+
+
+    public void test_partialConsumer() {
+        final FeedRetriever.BodyConsumer firstChar = new FeedRetriever.BodyConsumer() {
+
+            public void consume(FetchResult result, Reader body) throws IOException {
+                body.read();
+            }
+        };
+        new RecordingRetriever(new FakeRetriever(), corpus).retrieve(createTask(URL, null), firstChar);
+        final FetchResult replayed = new FixtureRetriever(corpus).retrieve(createTask(URL, null),
+                        FeedRetriever.BUFFERING);
+        Assert.assertEquals(DOC, replayed.body);
+    }
+
+
+    /**
+     * Parses the body while it is read, like the streaming mode of the
+     * UpdateService does. The SAX parser closes the reader when it is done.
+     */
+    public void test_streamingParser() {
+        new RecordingRetriever(new FakeRetriever(), corpus).retrieve(createTask(URL, null), FeedRetriever.BUFFERING);
+        final String[] feedName = new String[1];
+        final FeedHandlerClient client = new FeedHandlerClient() {
+
+            public void addItem(long feedId, int cleanHtml, Item item) {
+            }
+
+
+            public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+                feedName[0] = "parsed";
+            }
+        };
+        final FeedRetriever.BodyConsumer parser = new FeedRetriever.BodyConsumer() {
+
+            public void consume(FetchResult result, Reader body) throws IOException {
+                FeedParser.SAX.parse(body, new FeedHandler(1, 0, client, TimeZone.getDefault()));
+                result.ingested = true;
+            }
+        };
+        final FetchResult streamed = new FixtureRetriever(corpus).retrieve(createTask(URL, null), parser);
+        Assert.assertNotNull(streamed);
+        Assert.assertTrue(streamed.ingested);
+        Assert.assertNotNull(streamed.bodyHash);
+        Assert.assertEquals("parsed", feedName[0]);
+
+        final FetchResult buffered = new FixtureRetriever(corpus).retrieve(createTask(URL, null),
+                        FeedRetriever.BUFFERING);
+        Assert.assertEquals(buffered.bodyHash, streamed.bodyHash);
+    }
+
+
+    public void test_notModified() {
+        new RecordingRetriever(new FakeRetriever(), corpus).retrieve(createTask(URL, null), FeedRetriever.BUFFERING);
+        final FetchResult replayed = new FixtureRetriever(corpus).retrieve(createTask(URL, "\"v1\""),
+                        FeedRetriever.BUFFERING);
+        Assert.assertTrue(replayed.isNotModified());
+        Assert.assertNull(replayed.body);
+    }
+
+
+    public void test_unknownUrl() {
+        Assert.assertNull(new FixtureRetriever(corpus).retrieve(createTask(URL, null), FeedRetriever.BUFFERING));
+    }
+}
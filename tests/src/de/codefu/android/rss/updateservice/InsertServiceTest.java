@@ -20,6 +20,7 @@ package de.codefu.android.rss.updateservice;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,7 +47,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
         }
 
 
-        public void updateFeed(long feedId, String name, String description, String url) {
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
             feedTitle = name;
             feedDescription = description;
             feedUrl = url;
@@ -64,7 +65,6 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
 
     private TestableFeedHandler fh;
-    private InsertService service;
 
     private String feedTitle;
     private String feedDescription;
@@ -74,13 +74,12 @@ public class InsertServiceTest extends InstrumentationTestCase {
     public void setUp() {
         itemInserted = new LinkedList<Item>();
         fh = new TestableFeedHandler(1);
-        service = new InsertService();
     }
 
 
     public void testProcess1() throws IOException {
         final String xml = readFile("example091.xml", "iso8859-1");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed name", "Foo title", feedTitle);
         Assert.assertEquals("feed description", "News", feedDescription);
@@ -109,7 +108,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcess2() throws IOException {
         final String xml = readFile("test2.xml", "UTF-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
         Assert.assertEquals("feed name", "RSS Title", feedTitle);
         Assert.assertEquals("feed description", "This is an example of an RSS feed", feedDescription);
         Assert.assertEquals("feed url", "http://www.someexamplerssdomain.com/main.html", feedUrl);
@@ -132,7 +131,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcess3() throws IOException {
         final String xml = readFile("test3.xml", "UTF-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
         Assert.assertEquals("feed name", "Foo Blog", feedTitle);
         Assert.assertEquals("feed description", "Foo bar", feedDescription);
         Assert.assertEquals("feed url", "http://blog.example.com/", feedUrl);
@@ -151,7 +150,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcessRdf() throws IOException {
         String xml = readFile("rdf.xml", "ISO-8859-1");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed title", "Foo feed", feedTitle);
         Assert.assertEquals("feed description", "Foo bar baz", feedDescription);
@@ -179,7 +178,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcessRdf2() throws IOException {
         String xml = readFile("rdf2.xml", "UTF-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed title", "Foo RSS feed", feedTitle);
         Assert.assertEquals("feed description", "Foo mobil RSS", feedDescription);
@@ -207,7 +206,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcessAtom1() throws IOException {
         String xml = readFile("atom.xml", "UTF-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed title", "Dummy News", feedTitle);
         Assert.assertEquals("feed description", "Dummy subtitle a", feedDescription);
@@ -234,7 +233,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcess10() throws IOException {
         final String xml = readFile("example10.xml", "utf-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed name", "Foo Bar", feedTitle);
         Assert.assertEquals("feed description", "Foo description", feedDescription);
@@ -256,7 +255,7 @@ public class InsertServiceTest extends InstrumentationTestCase {
 
     public void testProcessScienceDaily() throws IOException {
         final String xml = readFile("site2.xml", "utf-8");
-        service.processXml(xml, 1, fh);
+        FeedParser.SAX.parse(new StringReader(xml), fh);
 
         Assert.assertEquals("feed name", "FooDaily News", feedTitle);
         Assert.assertEquals("feed description", "Feed description.", feedDescription);
@@ -283,15 +282,15 @@ public class InsertServiceTest extends InstrumentationTestCase {
     }
 
 
-    public void testProcessHtml() {
-        service.processXml(TEST_HTML, 1, fh);
+    public void testProcessHtml() throws IOException {
+        FeedParser.SAX.parse(new StringReader(TEST_HTML), fh);
         Assert.assertEquals("item count", 0, itemInserted.size());
         Assert.assertEquals("error", false, fh.hasErrorOccurred());
     }
 
 
-    public void testProcessNonXml() {
-        service.processXml(TEST_NON_XML, 1, fh);
+    public void testProcessNonXml() throws IOException {
+        FeedParser.SAX.parse(new StringReader(TEST_NON_XML), fh);
         Assert.assertEquals("item count", 0, itemInserted.size());
         Assert.assertEquals("error", false, fh.hasErrorOccurred());
     }
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+import android.test.InstrumentationTestCase;
+import de.codefu.android.rss.updateservice.FeedHandlerClient.Item;
+
+
+
+/**
+ * Tests collecting the update hints of a feed and the poll times derived from
+ * them.
+ *
+ * @author mj
+ */
+public class UpdateHintsTest extends InstrumentationTestCase {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+
+    private static class HintsClient implements FeedHandlerClient {
+
+        UpdateHints hints;
+
+
+        public void addItem(long feedId, int cleanHtml, Item item) {
+        }
+
+
+        public void updateFeed(long feedId, String name, String description, String url, UpdateHints hints) {
+            this.hints = hints;
+        }
+    }
+
+
+    private UpdateHints parse(String xml) throws IOException {
+        final HintsClient client = new HintsClient();
+        FeedParser.SAX.parse(new StringReader(xml), new FeedHandler(1, 0, client, UTC));
+        return client.hints;
+    }
+
+
+    private long utc(int year, int month, int day, int hour, int minute) {
+        final Calendar cal = Calendar.getInstance(UTC);
+        cal.clear();
+        cal.set(year, month - 1, day, hour, minute);
+        return cal.getTimeInMillis();
+    }
+
+
+    public void test_rss() throws IOException {
+        final UpdateHints hints = parse("<rss><channel><title>Foo</title><ttl>90</ttl>"
+                        + "<item><title>1</title><ttl>5</ttl></item>"
+                        + "<skipHours><hour>0</hour><hour>1</hour><hour>24</hour><hour>x</hour></skipHours>"
+                        + "<skipDays><day>Saturday</day><day>sunday</day></skipDays></channel></rss>");
+        Assert.assertEquals(90, hints.getMinIntervalMin());
+        Assert.assertEquals(3, hints.getSkipHours());
+        Assert.assertEquals((1 << 0) | (1 << 6), hints.getSkipDays());
+    }
+
+
+    public void test_syndication() throws IOException {
+        final String head = "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+                        + "xmlns:sy=\"http://purl.org/rss/1.0/modules/syndication/\" xmlns=\"http://purl.org/rss/1.0/\">"
+                        + "<channel><title>Foo</title>";
+        final String tail = "</channel></rdf:RDF>";
+        Assert.assertEquals(30, parse(head + "<sy:updatePeriod>hourly</sy:updatePeriod>"
+                        + "<sy:updateFrequency>2</sy:updateFrequency>" + tail).getMinIntervalMin());
+        Assert.assertEquals(360, parse(head + "<sy:updateFrequency>4</sy:updateFrequency>" + tail)
+                        .getMinIntervalMin());
+        Assert.assertEquals(UpdateHints.MAX_INTERVAL_MIN, parse(head + "<sy:updatePeriod>weekly</sy:updatePeriod>"
+                        + tail).getMinIntervalMin());
+        Assert.assertEquals(0, parse(head + tail).getMinIntervalMin());
+    }
+
+
+    public void test_nextAllowed() {
+        // Sunday, 2012-01-22
+        final long sunday = utc(2012, 1, 22, 10, 30);
+        Assert.assertEquals(sunday, UpdateHints.getNextAllowedMs(sunday, 0, 0));
+        Assert.assertEquals(sunday, UpdateHints.getNextAllowedMs(sunday, 1 << 11, 0));
+        Assert.assertEquals(utc(2012, 1, 22, 13, 0), UpdateHints.getNextAllowedMs(sunday, (1 << 10) | (1 << 11)
+                        | (1 << 12), 0));
+        Assert.assertEquals(utc(2012, 1, 23, 0, 0), UpdateHints.getNextAllowedMs(sunday, 0, 1));
+        // Skip Saturday and Sunday and the first hours of every day
+        final int weekend = (1 << 0) | (1 << 6);
+        Assert.assertEquals(utc(2012, 1, 23, 6, 0), UpdateHints.getNextAllowedMs(sunday, 0x3f, weekend));
+        // A feed cannot ask never to be polled.
+        Assert.assertEquals(sunday, UpdateHints.getNextAllowedMs(sunday, (1 << 24) - 1, 0));
+        Assert.assertEquals(sunday, UpdateHints.getNextAllowedMs(sunday, 0, 0x7f));
+    }
+}
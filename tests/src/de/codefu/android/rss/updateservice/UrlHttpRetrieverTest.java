@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2011 Matthias Jordan <matthias.jordan@googlemail.com>
+ *
+ * This file is part of piRSS.
+ *
+ * piRSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * piRSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with piRSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.codefu.android.rss.updateservice;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.DeflaterOutputStream;
+
+import junit.framework.Assert;
+import android.test.InstrumentationTestCase;
+import de.codefu.android.rss.db.FeedProvider;
+
+
+
+/**
+ * Tests the UrlHttpRetriever against a small local HTTP server.
+ *
+ * @author mj
+ */
+public class UrlHttpRetrieverTest extends InstrumentationTestCase {
+
+    private static final String DOC = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss><channel><title>t</title>"
+                    + "</channel></rss>";
+
+    private KeepAliveServer server;
+
+
+    /**
+     * Answers every request with the same document and keeps connections
+     * open. Requests for a path that ends with "deflate" get the document
+     * compressed, requests for a path that ends with "close" get it with
+     * "Connection: close". Requests for a path that ends with "noloc" get a
+     * redirect without a location. Counts the connections it accepted.
+     */
+    private static class KeepAliveServer extends Thread {
+
+        private final ServerSocket socket;
+        private int accepted;
+
+
+        KeepAliveServer() throws IOException {
+            socket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+
+        synchronized int getAccepted() {
+            return accepted;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = socket.accept();
+                    synchronized (this) {
+                        accepted++;
+                    }
+                    new Thread() {
+
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    }.start();
+                }
+            }
+            catch (IOException e) {
+                // closed
+            }
+        }
+
+
+        private void serve(Socket client) {
+            try {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                final OutputStream out = client.getOutputStream();
+                final byte[] plain = DOC.getBytes("UTF-8");
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                final DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+                deflater.write(plain);
+                deflater.close();
+                boolean deflate = false;
+                boolean close = false;
+                boolean noLocation = false;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("GET ")) {
+                        deflate = line.contains("deflate ");
+                        close = line.contains("close ");
+                        noLocation = line.contains("noloc ");
+                    }
+                    if (line.length() > 0) {
+                        continue;
+                    }
+                    final byte[] body = deflate ? compressed.toByteArray() : plain;
+                    final String head = (noLocation ? "HTTP/1.1 302 Found\r\nETag: \"x\"" : "HTTP/1.1 200 OK")
+                                    + "\r\nContent-Type: text/xml\r\nContent-Length: " + body.length
+                                    + (deflate ? "\r\nContent-Encoding: deflate" : "")
+                                    + "\r\nConnection: " + (close ? "close" : "keep-alive") + "\r\n\r\n";
+                    out.write(head.getBytes("UTF-8"));
+                    out.write(body);
+                    out.flush();
+                    if (close) {
+                        break;
+                    }
+                }
+                client.close();
+            }
+            catch (IOException e) {
+                // client went away
+            }
+        }
+
+
+        void shutdown() throws IOException {
+            socket.close();
+        }
+    }
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new KeepAliveServer();
+        server.start();
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+
+    /**
+     * A consumer that closes the body after reading a little of it, like a
+     * SAX parser does, must not break the download or keep-alive.
+     */
+    public void test_closingConsumer() {
+        final ConnectionTracker connections = new ConnectionTracker(true, 2);
+        final UrlHttpRetriever retriever = new UrlHttpRetriever(connections, 5000, 5000, 10000);
+        final String url = "http://127.0.0.1:" + server.getPort() + "/feed.xml";
+        final FeedRetriever.BodyConsumer closing = new FeedRetriever.BodyConsumer() {
+
+            public void consume(FetchResult result, Reader body) throws IOException {
+                body.read(new char[8]);
+                body.close();
+                result.ingested = true;
+            }
+        };
+
+        final FetchTask task = new FetchTask(1, url, 0, null, null, 1024 * 1024, null, 0, 0, 0,
+                        FeedProvider.PARSER_SAX);
+        final FetchResult first = retriever.retrieve(task, closing);
+        final FetchResult second = retriever.retrieve(task, closing);
+
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertTrue(first.ingested);
+        Assert.assertNotNull(first.bodyHash);
+        Assert.assertEquals(first.bodyHash, second.bodyHash);
+        Assert.assertEquals(1, connections.getReused());
+        Assert.assertEquals(1, server.getAccepted());
+    }
+
+
+    /**
+     * Deflate data is decoded, and ending the inflater afterwards leaves the
+     * connection usable.
+     */
+    public void test_deflate() {
+        final ConnectionTracker connections = new ConnectionTracker(true, 2);
+        final UrlHttpRetriever retriever = new UrlHttpRetriever(connections, 5000, 5000, 10000);
+        final String url = "http://127.0.0.1:" + server.getPort() + "/feed.deflate";
+        final FetchTask task = new FetchTask(1, url, 0, null, null, 1024 * 1024, null, 0, 0, 0,
+                        FeedProvider.PARSER_SAX);
+        for (int i = 0; i < 2; i++) {
+            final FetchResult result = retriever.retrieve(task, FeedRetriever.BUFFERING);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(DOC, result.body);
+        }
+        Assert.assertEquals(1, connections.getReused());
+        Assert.assertEquals(1, server.getAccepted());
+    }
+
+
+    /**
+     * A server that closes the connection after the response leaves nothing
+     * to reuse.
+     */
+    public void test_connectionClose() {
+        final ConnectionTracker connections = new ConnectionTracker(true, 2);
+        final UrlHttpRetriever retriever = new UrlHttpRetriever(connections, 5000, 5000, 10000);
+        final String url = "http://127.0.0.1:" + server.getPort() + "/feed.close";
+        final FetchTask task = new FetchTask(1, url, 0, null, null, 1024 * 1024, null, 0, 0, 0,
+                        FeedProvider.PARSER_SAX);
+        for (int i = 0; i < 2; i++) {
+            final FetchResult result = retriever.retrieve(task, FeedRetriever.BUFFERING);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(DOC, result.body);
+        }
+        Assert.assertEquals(0, connections.getReused());
+        Assert.assertEquals(2, connections.getOpened());
+        Assert.assertEquals(2, server.getAccepted());
+    }
+
+
+    public void test_isPersistent() {
+        Assert.assertTrue(ConnectionTracker.isPersistent("HTTP/1.1 200 OK", null));
+        Assert.assertTrue(ConnectionTracker.isPersistent(null, null));
+        Assert.assertFalse(ConnectionTracker.isPersistent("HTTP/1.1 200 OK", "Close"));
+        Assert.assertFalse(ConnectionTracker.isPersistent("HTTP/1.0 200 OK", null));
+        Assert.assertTrue(ConnectionTracker.isPersistent("HTTP/1.0 200 OK", "Keep-Alive"));
+    }
+
+
+    /**
+     * A redirect without a location is a failed download, not the feed.
+     */
+    public void test_redirectWithoutLocation() {
+        final ConnectionTracker connections = new ConnectionTracker(true, 2);
+        final UrlHttpRetriever retriever = new UrlHttpRetriever(connections, 5000, 5000, 10000);
+        final String url = "http://127.0.0.1:" + server.getPort() + "/feed.noloc";
+        final FetchTask task = new FetchTask(1, url, 0, null, null, 1024 * 1024, null, 0, 0, 0,
+                        FeedProvider.PARSER_SAX);
+        Assert.assertNull(retriever.retrieve(task, FeedRetriever.BUFFERING));
+    }
+}